@@ -0,0 +1,539 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Micro benchmarks for the simulator and protocol hot paths.
+ *
+ * Each benchmark is warmed up and then run in batches for a fixed time.  The
+ * result is the throughput in operations per second together with the bytes
+ * allocated per operation (from the per thread allocation counter, the same
+ * figure as gc.alloc.rate.norm of JMH's GC profiler) and the number of GC
+ * cycles during measurement.  Benchmarks over a payload also show the time
+ * per byte.
+ *
+ * "undetected" is not timed: it reports the fraction of packets corrupted by
+ * the simulator's corruption model that each Integrity algorithm accepts.
+ * Neither is "flowFootprint", the bytes allocated to set up an idle flow,
+ * nor "parallelSpeedup", which times one large multi-flow run with
+ * runSimulation() and with runSimulation(threads) and checks that every
+ * parallel run got the sequential result, nor "fateReplay", which times a
+ * run live, recording its packet fates and replaying them.
+ *
+ * Usage: java Benchmarks [name filter]
+ */
+public class Benchmarks {
+
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+
+    // results are folded into this so the JIT cannot drop the benchmarked code
+    static volatile long sink;
+
+    /**
+     * A benchmark body.  run(n) performs about n operations, folds its results
+     * into sink and returns the number of operations actually performed.
+     */
+    interface Body {
+        long run(int n);
+    }
+
+    public static void main(String[] args) {
+        String filter = args.length > 0 ? args[0] : "";
+        List<Object[]> benchmarks = new ArrayList<>();
+
+        for (int depth : new int[]{0, 1000, 10000, 100000}) {
+            benchmarks.add(new Object[]{"runSimulation", "queueDepth=" + depth, simulation(depth)});
+        }
+        for (int flows : new int[]{1, 100, 10000}) {
+            benchmarks.add(new Object[]{"multiFlow", "flows=" + flows, multiFlow(flows)});
+        }
+        for (int depth : new int[]{0, 1000, 100000}) {
+            benchmarks.add(new Object[]{"startStopTimer", "queueDepth=" + depth, timerCycle(depth)});
+        }
+        for (Integrity integrity : Integrity.values()) {
+            for (int size : new int[]{20, 256, 1024, 65536}) {
+                String param = integrity + "/payload=" + size;
+                benchmarks.add(new Object[]{"generateChksum", param, checksum(integrity, size), size});
+                benchmarks.add(new Object[]{"isCorrupt", param, isCorrupt(integrity, size), size});
+            }
+        }
+        for (int size : new int[]{20, 1024, 65536}) {
+            benchmarks.add(new Object[]{"transfer", "payload=" + size, transfer(size)});
+        }
+        for (int window : new int[]{2, 16, 256, 4096, 16384, 65536}) {
+            benchmarks.add(new Object[]{"sendAckWindow", "window=" + window, sendAckWindow(window)});
+        }
+        for (double p : new double[]{0.1, 0.001}) {
+            benchmarks.add(new Object[]{"impairment", "perPacket/p=" + p, perPacketLoss(p)});
+            benchmarks.add(new Object[]{"impairment", "bernoulli/p=" + p, impairment(new BernoulliLoss(p))});
+        }
+        benchmarks.add(new Object[]{"impairment", "gilbertElliott", impairment(new GilbertElliott(0.004, 0.2))});
+
+        System.out.format("%-16s %-24s %16s %14s %6s %8s%n", "benchmark", "param", "ops/s", "alloc B/op", "gc", "ns/B");
+        for (Object[] b : benchmarks) {
+            if (((String) b[0]).contains(filter)) {
+                measure((String) b[0], (String) b[1], (Body) b[2], b.length > 3 ? (Integer) b[3] : 0);
+            }
+        }
+        if ("undetected".contains(filter)) {
+            undetected(1_000_000);
+        }
+        if ("flowFootprint".contains(filter)) {
+            flowFootprint(10_000);
+        }
+        if ("parallelSpeedup".contains(filter)) {
+            parallelSpeedup(1024, 200_000, 1, 2, 4, 8, 16);
+        }
+        if ("fateReplay".contains(filter)) {
+            fateReplay(1_000_000);
+        }
+    }
+
+    /*
+     * bytesPerOp is the payload size of an operation for the ns/B column, 0 if there is none.
+     */
+    static void measure(String name, String param, Body body, int bytesPerOp) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        // grow the batch until one takes about 10ms
+        int batch = 1;
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS) {
+            long t = System.nanoTime();
+            body.run(batch);
+            if (System.nanoTime() - t < 10_000_000L && batch < (1 << 24)) {
+                batch *= 2;
+            }
+        }
+
+        long ops = 0;
+        long gcBefore = gcCount();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            ops += body.run(batch);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        System.out.format("%-16s %-24s %16.1f %14.1f %6d %8s%n", name, param, ops * 1e9 / elapsed,
+                (double) allocated / ops, gcCount() - gcBefore,
+                bytesPerOp == 0 ? "" : String.format("%.3f", (double) elapsed / ops / bytesPerOp));
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    /*
+     * One operation is one simulation event. The queue is preloaded with depth timers that expire after the
+     * run, so every event is scheduled into a queue of at least that size. Runs are at least depth messages
+     * long so that preloading the queue is a small part of the cost. The network is reliable, timeouts
+     * would let the sender's backlog (not the event loop) dominate.
+     */
+    static Body simulation(int depth) {
+        return n -> {
+            NetworkSimulator sim = new NetworkSimulator(Math.max(n / 4, depth), 0.0, 0.0, 5.0, false, 0, 42);
+            sim.setTracer(Tracer.off());
+            TransportLayerSender sender = new TransportLayerSender("Sender", sim);
+            sender.setWindowSize(8);
+            TransportLayerReceiver receiver = new TransportLayerReceiver("Receiver", sim);
+            sim.setSender(sender);
+            sim.setReceiver(receiver);
+            for (int i = 0; i < depth; i++) {
+                sim.startTimer(receiver, 1e12 + i, i);
+            }
+            sim.runSimulation();
+            return sim.getEventsProcessed() - depth;
+        };
+    }
+
+    /*
+     * One operation is one simulation event, with the messages spread over the given number of Go-Back-N flows
+     * sharing a fast link, so the load is the same whatever the number of flows. (The default channel serialises
+     * every packet of every flow, which thousands of flows would saturate.) At least 20 messages per flow, so
+     * setting the flows up is a small part of the cost.
+     */
+    static Body multiFlow(int flows) {
+        return n -> {
+            NetworkSimulator sim = new NetworkSimulator(Math.max(n / 4, 20 * flows), 0.0, 0.0, 1.0, false, 0, 42);
+            sim.setTracer(Tracer.off());
+            sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(10_000.0, 1.0, 2.0, 4096));
+            sim.setChannel(NetworkSimulator.TO_SENDER, new Link(10_000.0, 1.0, 2.0, 4096));
+            for (int i = 0; i < flows; i++) {
+                TransportLayerSender sender = new TransportLayerSender("Sender" + i, sim);
+                sender.setWindowSize(8);
+                sim.addFlow(sender, new TransportLayerReceiver("Receiver" + i, sim));
+            }
+            sim.runSimulation();
+            return sim.getEventsProcessed();
+        };
+    }
+
+    /*
+     * Prints the bytes allocated per flow to create flows Go-Back-N sender/receiver pairs and register them with a
+     * simulator, which is what an idle flow keeps alive.
+     */
+    static void flowFootprint(int flows) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        NetworkSimulator sim = new NetworkSimulator(0, 0.0, 0.0, 5.0, false, 0, 42);
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < flows; i++) {
+            sim.addFlow(new TransportLayerSender("Sender", sim), new TransportLayerReceiver("Receiver", sim));
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        sink += sim.getNumFlows();
+        System.out.format("%nflowFootprint: %d flows, %.1f bytes allocated per flow%n", flows, (double) allocated / flows);
+    }
+
+    /*
+     * Go-Back-N flows on a fast link with 1 time unit of propagation delay, the lookahead of a parallel run, and
+     * about 1000 arrivals per time unit, so a window holds a few thousand events.
+     */
+    static NetworkSimulator parallelWorkload(int flows, int messages) {
+        NetworkSimulator sim = new NetworkSimulator(messages, 0.01, 0.0, 0.001, false, 0, 42);
+        sim.setTracer(Tracer.off());
+        sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(1e6, 1.0, 2.0, 1 << 16));
+        sim.setChannel(NetworkSimulator.TO_SENDER, new Link(1e6, 1.0, 2.0, 1 << 16));
+        for (int i = 0; i < flows; i++) {
+            TransportLayerSender sender = new TransportLayerSender("Sender" + i, sim);
+            sender.setWindowSize(8);
+            sim.addFlow(sender, new TransportLayerReceiver("Receiver" + i, sim));
+        }
+        return sim;
+    }
+
+    /*
+     * The outcome of a run that a parallel run must reproduce.
+     */
+    static String outcome(NetworkSimulator sim) {
+        Metrics metrics = sim.getMetrics();
+        StringBuilder sb = new StringBuilder();
+        sb.append(sim.getTime()).append(' ').append(sim.getEventsProcessed()).append(' ').append(sim.getMessagesDelivered())
+                .append(' ').append(sim.getNumLost()).append(' ').append(metrics.getRetransmissions())
+                .append(' ').append(metrics.getTimerFires()).append(' ').append(metrics.getLatency().getMax());
+        for (int flow = 0; flow < sim.getNumFlows(); flow++) {
+            sb.append(' ').append(metrics.getFlowStats(flow));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Prints the wall clock time of the parallel workload with the sequential engine and with the parallel one at
+     * each thread count, the speed-up over the sequential engine and whether the result was the same. The best of
+     * 3 runs is taken.
+     */
+    static void parallelSpeedup(int flows, int messages, int... threadCounts) {
+        String expected = null;
+        long sequential = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            NetworkSimulator sim = parallelWorkload(flows, messages);
+            long start = System.nanoTime();
+            sim.runSimulation();
+            sequential = Math.min(sequential, System.nanoTime() - start);
+            expected = outcome(sim);
+        }
+        System.out.format("%nparallelSpeedup: %d flows, %d messages, %d cores%n", flows, messages,
+                Runtime.getRuntime().availableProcessors());
+        System.out.format("%-12s %10s %8s %10s%n", "engine", "wall ms", "speedup", "identical");
+        System.out.format("%-12s %10.1f %8.2f %10s%n", "sequential", sequential / 1e6, 1.0, "");
+        for (int threads : threadCounts) {
+            long best = Long.MAX_VALUE;
+            boolean identical = true;
+            for (int i = 0; i < 3; i++) {
+                NetworkSimulator sim = parallelWorkload(flows, messages);
+                long start = System.nanoTime();
+                sim.runSimulation(threads);
+                best = Math.min(best, System.nanoTime() - start);
+                identical &= outcome(sim).equals(expected);
+            }
+            System.out.format("%-12s %10.1f %8.2f %10s%n", "threads=" + threads, best / 1e6, (double) sequential / best,
+                    identical ? "yes" : "NO");
+        }
+    }
+
+    /*
+     * One Go-Back-N flow with 10% loss and 10% corruption on a link with a small buffer.
+     */
+    static NetworkSimulator lossyWorkload(int messages) {
+        NetworkSimulator sim = new NetworkSimulator(messages, 0.1, 0.1, 5.0, false, 0, 42);
+        sim.setTracer(Tracer.off());
+        sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(100.0, 10.0, 1.0, 8));
+        sim.setChannel(NetworkSimulator.TO_SENDER, new Link(100.0, 10.0, 1.0, 8));
+        TransportLayerSender sender = new TransportLayerSender("Sender", sim);
+        sender.setWindowSize(8);
+        sim.setSender(sender);
+        sim.setReceiver(new TransportLayerReceiver("Receiver", sim));
+        return sim;
+    }
+
+    /*
+     * Records the packet fates of the lossy workload to a temporary file, then prints the wall clock time of the
+     * live run, of recording and of replaying the trace, the best of 3 runs each, and whether the replay got the
+     * live result.
+     */
+    static void fateReplay(int messages) {
+        try {
+            Path trace = Files.createTempFile("fates", ".bin");
+            try {
+                String expected = null;
+                long live = Long.MAX_VALUE;
+                long record = Long.MAX_VALUE;
+                long replay = Long.MAX_VALUE;
+                long records = 0;
+                long size = 0;
+                boolean identical = true;
+                for (int i = 0; i < 3; i++) {
+                    NetworkSimulator sim = lossyWorkload(messages);
+                    long start = System.nanoTime();
+                    sim.runSimulation();
+                    live = Math.min(live, System.nanoTime() - start);
+                    expected = outcome(sim);
+
+                    sim = lossyWorkload(messages);
+                    try (FateRecorder recorder = new FateRecorder(trace)) {
+                        sim.setFateRecorder(recorder);
+                        start = System.nanoTime();
+                        sim.runSimulation();
+                        record = Math.min(record, System.nanoTime() - start);
+                        records = recorder.getRecords();
+                        size = recorder.getSize();
+                    }
+
+                    sim = lossyWorkload(messages);
+                    try (FateReplay fates = new FateReplay(trace)) {
+                        sim.setFateReplay(fates);
+                        start = System.nanoTime();
+                        sim.runSimulation();
+                        replay = Math.min(replay, System.nanoTime() - start);
+                    }
+                    identical &= outcome(sim).equals(expected);
+                }
+                System.out.format("%nfateReplay: %d messages, %d packets, %.1f bytes per packet%n", messages, records,
+                        (double) size / records);
+                System.out.format("%-12s %10s %10s%n", "run", "wall ms", "identical");
+                System.out.format("%-12s %10.1f %10s%n", "live", live / 1e6, "");
+                System.out.format("%-12s %10.1f %10s%n", "record", record / 1e6, "");
+                System.out.format("%-12s %10.1f %10s%n", "replay", replay / 1e6, identical ? "yes" : "NO");
+            } finally {
+                Files.delete(trace);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * One operation is one message of size bytes taken from the application layer, sent over a reliable network
+     * and delivered to the application layer at the other end, including its ACK.
+     */
+    static Body transfer(int size) {
+        byte[] message = payload(size).getData();
+        return n -> {
+            NetworkSimulator sim = new NetworkSimulator(n, 0.0, 0.0, 5.0, false, 0, 42);
+            sim.setTracer(Tracer.off());
+            TransportLayerSender sender = new TransportLayerSender("Sender", sim) {
+                @Override
+                public void rdt_send(byte[] data) {
+                    super.rdt_send(message);
+                }
+            };
+            sender.setWindowSize(8);
+            sender.setLabelPackets(false);
+            sim.setSender(sender);
+            sim.setReceiver(new TransportLayerReceiver("Receiver", sim));
+            sim.runSimulation();
+            return sim.getMessagesDelivered();
+        };
+    }
+
+    /*
+     * One operation is the loss decision for one packet drawn as the simulator's lossProb is, a random number per
+     * packet, the baseline for the skip-sampled models.
+     */
+    static Body perPacketLoss(double p) {
+        SplittableRandom random = new SplittableRandom(42);
+        return n -> {
+            long lost = 0;
+            for (int i = 0; i < n; i++) {
+                if (random.nextDouble() < p) {
+                    lost++;
+                }
+            }
+            sink += lost;
+            return n;
+        };
+    }
+
+    /*
+     * One operation is one packet through an impairment model.
+     */
+    static Body impairment(Impairment model) {
+        SplittableRandom random = new SplittableRandom(42);
+        return n -> {
+            long impaired = 0;
+            for (int i = 0; i < n; i++) {
+                impaired += model.next(random);
+            }
+            sink += impaired;
+            return n;
+        };
+    }
+
+    /*
+     * One operation is a startTimer/stopTimer pair with depth other events in the queue.
+     */
+    static Body timerCycle(int depth) {
+        NetworkSimulator sim = new NetworkSimulator(0, 0.0, 0.0, 1.0, false, 0, 42);
+        sim.setTracer(Tracer.off());
+        TransportLayer layer = new TransportLayerSender("Sender", sim);
+        sim.setSender(layer);
+        for (int i = 0; i < depth; i++) {
+            sim.startTimer(layer, 1.0 + i, i);
+        }
+        return n -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += sim.startTimer(layer, 500.0);
+                sim.stopTimer(layer);
+            }
+            sink += sum;
+            return n;
+        };
+    }
+
+    static TransportLayerPacket payload(int size) {
+        return payload(Integrity.SUM, size);
+    }
+
+    static TransportLayerPacket payload(Integrity integrity, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return new TransportLayerPacket(1, 2, data, integrity);
+    }
+
+    static Body checksum(Integrity integrity, int size) {
+        TransportLayerPacket pkt = payload(integrity, size);
+        return n -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                pkt.generateChksum();
+                sum += pkt.getChksum();
+            }
+            sink += sum;
+            return n;
+        };
+    }
+
+    static Body isCorrupt(Integrity integrity, int size) {
+        TransportLayerPacket pkt = payload(integrity, size);
+        NetworkSimulator sim = new NetworkSimulator(0, 0.0, 0.0, 1.0, false, 0, 42);
+        sim.setIntegrity(integrity);
+        TransportLayer layer = new TransportLayerReceiver("Receiver", sim);
+        return n -> {
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += layer.isCorrupt(pkt) ? 1 : 0;
+            }
+            sink += sum;
+            return n;
+        };
+    }
+
+    /*
+     * One operation is sending one message through rdt_send and later ACKing it through rdt_receive: the window
+     * is filled, then cumulatively ACKed one packet at a time. The network drops everything and packets are
+     * not relabelled, so only the sender's own work is measured.
+     */
+    static Body sendAckWindow(int window) {
+        NetworkSimulator sim = new NullNetwork();
+        TransportLayerSender sender = new TransportLayerSender("Sender", sim);
+        sender.setWindowSize(window);
+        sender.setLabelPackets(false);
+        sim.setSender(sender);
+        byte[] data = new byte[20];
+        TransportLayerPacket ack = new TransportLayerPacket(0, 0, data);
+        int[] next = {0};
+        return n -> {
+            long sum = 0;
+            int done = 0;
+            for (; done < n; done += window) {
+                int base = next[0];
+                for (int i = 0; i < window; i++) {
+                    sender.rdt_send(data);
+                }
+                for (int i = 0; i < window; i++) {
+                    // ACK for seq (base + i) acknowledges everything below base + i + 1
+                    ack.setSeqnum(base + i);
+                    ack.setAcknum(base + i + 1);
+                    ack.generateChksum();
+                    sender.rdt_receive(ack);
+                }
+                next[0] = base + window;
+                sum += sender.getWindowSize();
+            }
+            sink += sum;
+            return done;
+        };
+    }
+
+    /*
+     * Corrupts trials simulator-style packets (20 random letters, random sequence numbers) with the simulator's
+     * corruption model and prints the fraction each integrity algorithm fails to detect. Trials where the model
+     * left the packet unchanged are not counted.
+     */
+    static void undetected(int trials) {
+        System.out.format("%n%-16s %12s %12s %12s %12s%n", "undetected", "trials", "corrupted", "undetected", "rate");
+        for (Integrity integrity : Integrity.values()) {
+            NetworkSimulator sim = new NetworkSimulator(0, 0.0, 1.0, 1.0, false, 0, 42);
+            sim.setTracer(Tracer.off());
+            SplittableRandom random = new SplittableRandom(42);
+            long corrupted = 0;
+            long missed = 0;
+            for (int i = 0; i < trials; i++) {
+                int seq = random.nextInt(1 << 20);
+                TransportLayerPacket pkt = new TransportLayerPacket(seq, seq, sim.randomLetters(), integrity);
+                TransportLayerPacket copy = new TransportLayerPacket(pkt);
+                sim.corrupt(NetworkSimulator.SENDER, pkt, copy);
+                if (copy.corrupted) {
+                    corrupted++;
+                    if (integrity.verify(copy)) {
+                        missed++;
+                    }
+                }
+            }
+            System.out.format("%-16s %12d %12d %12d %12.6f%n", integrity, trials, corrupted, missed, (double) missed / corrupted);
+        }
+    }
+
+    /*
+     * A simulator whose network layer discards everything, for benchmarking a single TransportLayer.
+     */
+    static class NullNetwork extends NetworkSimulator {
+
+        NullNetwork() {
+            super(0, 0.0, 0.0, 1.0, false, 0, 42);
+            setTracer(Tracer.off());
+        }
+
+        @Override
+        public void sendToNetworkLayer(TransportLayer source, TransportLayerPacket pkt) {
+        }
+    }
+}
@@ -0,0 +1,25 @@
+import java.util.SplittableRandom;
+
+/**
+ * Independent loss: every packet is lost with the same probability, as with
+ * the simulator's lossProb, but skip-sampled so a low loss rate costs a
+ * random number per lost packet instead of per packet.
+ */
+public class BernoulliLoss implements Impairment {
+
+    private final SkipSampler loss;
+
+    public BernoulliLoss(double probability) {
+        loss = new SkipSampler(probability);
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+        return loss.next(random) ? LOSE : 0;
+    }
+
+    @Override
+    public void reset() {
+        loss.reset();
+    }
+}
@@ -0,0 +1,31 @@
+import java.util.SplittableRandom;
+
+/**
+ * One direction of the simulated network between the two transport layers,
+ * deciding when a packet that the network did not lose arrives, or whether
+ * the channel itself drops it.  Set with NetworkSimulator.setChannel; by
+ * default both directions behave as the simulator always has.  See Link
+ * for a model with bandwidth, propagation delay and a bottleneck queue.
+ */
+public interface Channel {
+
+    /**
+     * A packet enters the channel.
+     * @param now the current simulation time.
+     * @param bytes the packet's size on the wire (TransportLayerPacket.getWireSize()).
+     * @param random the simulator's delay stream, the only randomness a channel may use.
+     * @return the time the packet arrives at the other end, or NaN if the channel drops it.
+     */
+    double transmit(double now, int bytes, SplittableRandom random);
+
+    /**
+     * @return a lower bound of the time any packet takes, the lookahead of
+     * NetworkSimulator.runSimulation(int).  0 if there is none.
+     */
+    double getMinDelay();
+
+    /**
+     * Forget all packets in flight, called when a simulation run starts.
+     */
+    void reset();
+}
@@ -0,0 +1,72 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Records the congestion window of a TransportLayerSender over simulation
+ * time, one point per change, so the trajectory of an AIMD run can be
+ * plotted or compared against fixed window sizes.  Points are kept in
+ * parallel growable arrays.
+ */
+public class CwndRecorder {
+
+    private double[] time = new double[64];
+    private double[] cwnd = new double[64];
+    private double[] ssthresh = new double[64];
+    private int size;
+
+    /**
+     * Add a point, called by the sender whenever its window changes.
+     */
+    public void record(double t, double window, double threshold) {
+        if (size == time.length) {
+            time = Arrays.copyOf(time, size * 2);
+            cwnd = Arrays.copyOf(cwnd, size * 2);
+            ssthresh = Arrays.copyOf(ssthresh, size * 2);
+        }
+        time[size] = t;
+        cwnd[size] = window;
+        ssthresh[size] = threshold;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double timeAt(int i) {
+        return time[i];
+    }
+
+    public double cwndAt(int i) {
+        return cwnd[i];
+    }
+
+    public double ssthreshAt(int i) {
+        return ssthresh[i];
+    }
+
+    /**
+     * @return the time weighted mean window from the first point until end.
+     */
+    public double meanWindow(double end) {
+        if (size == 0 || end <= time[0]) {
+            return size == 0 ? Double.NaN : cwnd[0];
+        }
+        double area = 0;
+        for (int i = 0; i < size; i++) {
+            double until = i + 1 < size ? time[i + 1] : end;
+            area += cwnd[i] * (until - time[i]);
+        }
+        return area / (end - time[0]);
+    }
+
+    /**
+     * Write the trajectory as tab separated time, cwnd and ssthresh with a header row.
+     */
+    public void write(PrintStream out) {
+        out.println("time\tcwnd\tssthresh");
+        for (int i = 0; i < size; i++) {
+            out.format("%.3f\t%.3f\t%.3f%n", time[i], cwnd[i], ssthresh[i]);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Regression check for the order in which the default channel delivers
+ * packets.
+ *
+ * The simulator used to find the time a packet queues behind by scanning the
+ * whole event queue on every send for the latest pending event that is not a
+ * timer; it now keeps a tail time per direction instead.  This runs seeded
+ * lossy Go-Back-N simulations twice, once with the default channel and once
+ * with a channel that still scans the queue, records every packet delivered
+ * to either endpoint (endpoint, seqnum, acknum and time) and checks that both
+ * runs delivered the same packets in the same order at the same times.
+ *
+ * Usage: java DeliveryOrderCheck
+ * Exits with status 1 if any run differs.
+ */
+public class DeliveryOrderCheck {
+
+    public static void main(String[] args) {
+        boolean identical = true;
+        System.out.format("%-6s %-6s %-6s %10s %10s%n", "seed", "window", "loss", "delivered", "identical");
+        for (long seed : new long[]{5, 7, 11, 42}) {
+            for (int window : new int[]{1, 8, 16}) {
+                for (double loss : new double[]{0.0, 0.2}) {
+                    List<String> expected = deliveries(seed, window, loss, true);
+                    List<String> actual = deliveries(seed, window, loss, false);
+                    int mismatch = firstMismatch(expected, actual);
+                    System.out.format("%-6d %-6d %-6.1f %10d %10s%n", seed, window, loss, actual.size(),
+                            mismatch < 0 ? "yes" : "NO");
+                    if (mismatch >= 0) {
+                        identical = false;
+                        System.out.format("  delivery %d: expected %s, got %s%n", mismatch,
+                                mismatch < expected.size() ? expected.get(mismatch) : "nothing",
+                                mismatch < actual.size() ? actual.get(mismatch) : "nothing");
+                    }
+                }
+            }
+        }
+        if (!identical) {
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Runs 1000 messages through Go-Back-N with the given window, loss and 20% corruption and returns every packet
+     * delivered to either endpoint, in delivery order. With scan the channel is the queue scanning reference.
+     */
+    static List<String> deliveries(long seed, int window, double loss, boolean scan) {
+        NetworkSimulator sim = new NetworkSimulator(1000, loss, 0.2, 5.0, false, 0, seed);
+        sim.setTracer(Tracer.off());
+        if (scan) {
+            sim.setChannel(NetworkSimulator.TO_RECEIVER, new QueueScanChannel(sim));
+            sim.setChannel(NetworkSimulator.TO_SENDER, new QueueScanChannel(sim));
+        }
+        List<String> deliveries = new ArrayList<>();
+        TransportLayerSender sender = new TransportLayerSender("Sender", sim) {
+            @Override
+            public void rdt_receive(TransportLayerPacket pkt) {
+                deliveries.add(describe(NetworkSimulator.SENDER, pkt, sim.getTime()));
+                super.rdt_receive(pkt);
+            }
+        };
+        sender.setWindowSize(window);
+        sim.setSender(sender);
+        sim.setReceiver(new TransportLayerReceiver("Receiver", sim) {
+            @Override
+            public void rdt_receive(TransportLayerPacket pkt) {
+                deliveries.add(describe(NetworkSimulator.RECEIVER, pkt, sim.getTime()));
+                super.rdt_receive(pkt);
+            }
+        });
+        sim.runSimulation();
+        return deliveries;
+    }
+
+    private static String describe(int endpoint, TransportLayerPacket pkt, double time) {
+        return "endpoint=" + endpoint + " seq=" + pkt.getSeqnum() + " ack=" + pkt.getAcknum() + " time=" + time;
+    }
+
+    /*
+     * The index of the first delivery that differs, -1 if there is none.
+     */
+    private static int firstMismatch(List<String> expected, List<String> actual) {
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            if (i >= expected.size() || i >= actual.size() || !expected.get(i).equals(actual.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The default channel as the simulator first implemented it: the packet arrives 1 to 3 time units after the
+     * latest pending event that is not a timer, found by scanning the event queue.
+     */
+    private static class QueueScanChannel implements Channel {
+
+        private final NetworkSimulator sim;
+
+        QueueScanChannel(NetworkSimulator sim) {
+            this.sim = sim;
+        }
+
+        @Override
+        public double transmit(double now, int bytes, SplittableRandom random) {
+            EventQueue queue = sim.queue();
+            double lastTime = now;
+            for (int slot : queue.sortedSlots()) {
+                if (queue.typeOf(slot) != EventQueue.TIMER_INTERRUPT && queue.timeOf(slot) > lastTime) {
+                    lastTime = queue.timeOf(slot);
+                }
+            }
+            return lastTime + (1 + 2 * random.nextDouble());
+        }
+
+        @Override
+        public double getMinDelay() {
+            return 1.0;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+}
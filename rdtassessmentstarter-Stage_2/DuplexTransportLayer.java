@@ -0,0 +1,325 @@
+import java.util.ArrayDeque;
+
+/*
+ * Full-duplex Go-Back-N: both ends of a flow send data and acknowledge each other's. Every data packet carries a
+ * cumulative ACK in its acknum (the next sequence number expected from the peer), so ACKs ride on reverse data
+ * whenever there is some. After an in-order packet the ACK waits up to the ACK delay for data to piggyback on, and
+ * goes out on its own (a packet without payload) if none is sent by then or once ackEvery packets are waiting for
+ * it. Gaps and duplicates are answered straight away so the peer sees them. Use an instance at each end of the
+ * flow, with bidirectional arrivals.
+ *
+ * The sending side works like TransportLayerSender with a fixed window: one retransmission timer for the oldest
+ * packet with an RTO from an RttEstimator (Karn's rule), going back to the oldest packet on a timeout or on the
+ * third duplicate ACK. As in TCP only packets without payload count as duplicate ACKs, a data packet repeats the
+ * acknum whenever the peer has nothing new to ACK. Retransmitted packets carry the current ACK.
+ */
+public class DuplexTransportLayer extends TransportLayer implements Windowed, Retransmitting, Labelling {
+
+    private static final int RETRANSMIT_TIMER = 0;
+    private static final int ACK_TIMER = 1;
+
+    // sending side: packets sendBase..nextSeqNum-1 live at window[seq & windowMask], the length is a power of two
+    private int sendBase;
+    private int nextSeqNum;
+    private int windowSize;
+    private TransportLayerPacket[] window;
+    private double[] sentAt;    // send time of each packet in the window, NaN once retransmitted (Karn's rule)
+    private int windowMask;
+    private ArrayDeque<byte[]> queue;
+    private RttEstimator rtt;
+    private long retransmitTimer;   // handle of the retransmission timer, 0 when it isn't running
+    private int dupAcks;        // duplicate ACKs for sendBase seen in a row
+    private int recover = -1;   // highest sequence number sent when the sender last went back to sendBase
+    private int numSent; //number of packets sent - used to label packets for testing
+    private boolean labelPackets = true; // replace the data of each packet with "Packet <numSent>" for testing
+
+    // receiving side
+    private int expectedSeqnum; // next sequence number expected from the peer, the acknum of everything sent
+    private int ackEvery = 2;   // send the ACK on its own once this many in-order packets wait for it
+    private double ackDelay = 5.0; // longest an in-order packet waits for its ACK
+    private boolean piggyback = true;
+    private int unacked;        // in-order packets delivered but not ACKed yet
+    private long ackTimer;      // handle of the delayed ACK timer, 0 when it isn't running
+    private int acksSent;       // ACKs sent on their own
+    private int piggybackedAcks; // ACKs that went out on a data packet
+
+    public DuplexTransportLayer(String name, NetworkSimulator simulator) {
+        super(name, simulator);
+        queue = new ArrayDeque<>();
+        windowSize = 2;
+        window = new TransportLayerPacket[2];
+        sentAt = new double[2];
+        windowMask = 1;
+        rtt = new RttEstimator();
+    }
+
+    @Override
+    public void init() {
+        log(TraceEvent.LAYER_INIT);
+    }
+
+    @Override
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /*
+     * Sets the window size, the window arrays grow to the next power of two if needed (packets in flight are kept).
+     */
+    @Override
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        if (windowSize > window.length) {
+            int capacity = Integer.highestOneBit(windowSize - 1) << 1;
+            TransportLayerPacket[] grown = new TransportLayerPacket[capacity];
+            double[] grownSentAt = new double[capacity];
+            for (int seq = sendBase; seq < nextSeqNum; seq++) {
+                grown[seq & (capacity - 1)] = window[seq & windowMask];
+                grownSentAt[seq & (capacity - 1)] = sentAt[seq & windowMask];
+            }
+            window = grown;
+            sentAt = grownSentAt;
+            windowMask = capacity - 1;
+        }
+    }
+
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    @Override
+    public void setRttEstimator(RttEstimator rtt) {
+        this.rtt = rtt;
+    }
+
+    /*
+     * The current retransmission timeout.
+     */
+    public double getRto() {
+        return rtt.getRto();
+    }
+
+    @Override
+    public void setLabelPackets(boolean labelPackets) {
+        this.labelPackets = labelPackets;
+    }
+
+    /*
+     * An ACK waits at most delay for data to piggyback on, and is sent on its own as soon as ackEvery in-order
+     * packets wait for it. The default is 2 packets or 5 time units.
+     */
+    public void setDelayedAck(int ackEvery, double delay) {
+        if (ackEvery < 1 || delay <= 0) {
+            throw new IllegalArgumentException("ackEvery must be at least 1 and delay positive");
+        }
+        this.ackEvery = ackEvery;
+        this.ackDelay = delay;
+    }
+
+    /*
+     * Turns waiting for data to piggyback ACKs on (the default) or off. When off every in-order packet is ACKed
+     * on its own straight away, data packets still carry the acknum.
+     */
+    public void setPiggyback(boolean piggyback) {
+        this.piggyback = piggyback;
+    }
+
+    /*
+     * Number of ACKs sent on their own, i.e. packets without payload.
+     */
+    public int getAcksSent() {
+        return acksSent;
+    }
+
+    /*
+     * Number of ACKs that went out on a data packet instead of on their own.
+     */
+    public int getPiggybackedAcks() {
+        return piggybackedAcks;
+    }
+
+    @Override
+    public void rdt_send(byte[] data) {
+        if (nextSeqNum - sendBase < windowSize && queue.isEmpty()) {
+            sendData(data);
+        } else {
+            log(TraceEvent.SEND_QUEUED, data);
+            queue.add(data);
+        }
+    }
+
+    /*
+     * Sends data as the next packet, with the ACK for everything received so far. The caller checks there is room
+     * in the window.
+     */
+    private void sendData(byte[] data) {
+        numSent++; // only used for testing
+        if (labelPackets) {
+            data = ("Packet " + numSent).getBytes(); // only used for testing
+        }
+        TransportLayerPacket sendPacket = new TransportLayerPacket(nextSeqNum, expectedSeqnum, data, simulator.getIntegrity());
+        window[nextSeqNum & windowMask] = sendPacket;
+        sentAt[nextSeqNum & windowMask] = simulator.getTime();
+
+        log(TraceEvent.SENDING, sendPacket);
+        ackSent(true);
+        simulator.sendToNetworkLayer(this, sendPacket);
+        if (retransmitTimer == 0) {
+            retransmitTimer = simulator.startTimer(this, rtt.getRto(), RETRANSMIT_TIMER);
+        }
+        nextSeqNum++;
+    }
+
+    /*
+     * Sends queued data while there's room in the window.
+     */
+    private void sendQueued() {
+        while (nextSeqNum - sendBase < windowSize && !queue.isEmpty()) {
+            log(TraceEvent.TAKE_FROM_QUEUE);
+            sendData(queue.poll());
+        }
+    }
+
+    /*
+     * Sends an ACK for everything received in order on its own.
+     */
+    private void sendAck() {
+        TransportLayerPacket ack = new TransportLayerPacket(nextSeqNum, expectedSeqnum, TransportLayerPacket.NO_DATA,
+                simulator.getIntegrity());
+        log(TraceEvent.DELIVER_ACK, ack);
+        ackSent(false);
+        simulator.sendToNetworkLayer(this, ack);
+    }
+
+    /*
+     * A packet carrying expectedSeqnum as its acknum is being sent, nothing waits for an ACK any more.
+     */
+    private void ackSent(boolean onData) {
+        if (onData) {
+            if (unacked > 0) {
+                piggybackedAcks++;
+            }
+        } else {
+            acksSent++;
+        }
+        unacked = 0;
+        if (ackTimer != 0) {
+            simulator.cancelTimer(ackTimer);
+            ackTimer = 0;
+        }
+    }
+
+    /*
+     * Handles a packet from the peer: its data first, so that anything sent in reply carries the new ACK, then
+     * its ACK, which may make room for queued data.
+     */
+    @Override
+    public void rdt_receive(TransportLayerPacket pkt) {
+        log(TraceEvent.RECEIVED, pkt);
+
+        if (isCorrupt(pkt)) {
+            log(TraceEvent.CORRUPT_IGNORED, pkt); // the peer's timer will recover it
+            return;
+        }
+
+        boolean hasData = pkt.getData().length > 0;
+        if (hasData) {
+            receiveData(pkt);
+        }
+        receiveAck(pkt, hasData);
+        sendQueued();
+
+        if (unacked > 0) {
+            if (!piggyback || unacked >= ackEvery) {
+                sendAck();
+            } else if (ackTimer == 0) {
+                ackTimer = simulator.startTimer(this, ackDelay, ACK_TIMER);
+            }
+        }
+    }
+
+    private void receiveData(TransportLayerPacket pkt) {
+        if (pkt.getSeqnum() == expectedSeqnum) {
+            simulator.sendToApplicationLayer(this, pkt.getData());
+            expectedSeqnum++;
+            unacked++;
+        } else {
+            if (pkt.getSeqnum() < expectedSeqnum) {
+                simulator.getMetrics().duplicate();
+            }
+            // the peer has to see the gap, or that its packet arrived before
+            log(TraceEvent.OUT_OF_ORDER_REACK, pkt);
+            sendAck();
+        }
+    }
+
+    private void receiveAck(TransportLayerPacket pkt, boolean hasData) {
+        int ack = pkt.getAcknum();
+        if (ack > sendBase && ack <= nextSeqNum) {
+            log(TraceEvent.ACK_CORRECT, pkt);
+            dupAcks = 0;
+
+            // the ACK is for the packet before ack, it gives an RTT sample unless that packet was resent
+            double sentTime = sentAt[(ack - 1) & windowMask];
+            if (!Double.isNaN(sentTime)) {
+                rtt.sample(simulator.getTime() - sentTime);
+            } else {
+                rtt.resetBackoff();
+            }
+
+            for (; sendBase < ack; sendBase++) {
+                log(TraceEvent.ACK_REMOVE, pkt, sendBase);
+                window[sendBase & windowMask] = null;
+            }
+            simulator.cancelTimer(retransmitTimer);
+            retransmitTimer = sendBase < nextSeqNum ? simulator.startTimer(this, rtt.getRto(), RETRANSMIT_TIMER) : 0;
+
+        } else if (ack == sendBase && sendBase < nextSeqNum && !hasData) {
+            log(TraceEvent.ACK_DUPLICATE, pkt);
+            if (++dupAcks == 3 && sendBase > recover) {
+                log(TraceEvent.FAST_RETRANSMIT, window[sendBase & windowMask]);
+                resendWindow();
+            }
+        }
+    }
+
+    /*
+     * Goes back to sendBase: resends every packet in the window with the current ACK and restarts the timer.
+     */
+    private void resendWindow() {
+        recover = nextSeqNum - 1;
+        dupAcks = 0;
+        for (int seq = sendBase; seq < nextSeqNum; seq++) {
+            int i = seq & windowMask;
+            window[i] = new TransportLayerPacket(seq, expectedSeqnum, window[i].getData(), simulator.getIntegrity());
+            ackSent(true);
+            simulator.sendToNetworkLayer(this, window[i]);
+            sentAt[i] = Double.NaN;
+            simulator.getMetrics().retransmission();
+            log(TraceEvent.RESEND, seq + 1);
+        }
+        simulator.cancelTimer(retransmitTimer);
+        retransmitTimer = simulator.startTimer(this, rtt.getRto(), RETRANSMIT_TIMER);
+    }
+
+    @Override
+    public void timerInterrupt(int tag) {
+        if (tag == ACK_TIMER) {
+            ackTimer = 0;
+            if (unacked > 0) {
+                log(TraceEvent.DELAYED_ACK_TIMEOUT);
+                sendAck();
+            }
+        } else {
+            retransmitTimer = 0;
+            log(TraceEvent.TIMEOUT, window[sendBase & windowMask]);
+            rtt.backoff();
+            resendWindow();
+        }
+    }
+
+    @Override
+    public void timerInterrupt() {
+    }
+}
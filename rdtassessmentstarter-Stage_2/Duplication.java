@@ -0,0 +1,25 @@
+import java.util.SplittableRandom;
+
+/**
+ * Duplication: with the given probability the network delivers a packet
+ * twice.  The copy goes through the channel after the original, so it
+ * takes its share of a Link's bandwidth and may be dropped on its own.
+ */
+public class Duplication implements Impairment {
+
+    private final SkipSampler duplicate;
+
+    public Duplication(double probability) {
+        duplicate = new SkipSampler(probability);
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+        return duplicate.next(random) ? DUPLICATE : 0;
+    }
+
+    @Override
+    public void reset() {
+        duplicate.reset();
+    }
+}
@@ -0,0 +1,471 @@
+import java.util.Arrays;
+
+/**
+ * The event queue of the NetworkSimulator.  Events are stored in parallel
+ * primitive arrays indexed by a slot number and ordered by an indexed 4-ary
+ * heap of slots, so scheduling, polling and cancelling an event allocate
+ * nothing once the arrays have grown to the working size of the simulation.
+ *
+ * Events with the same time are returned in the order they were added.
+ *
+ * Every event added is identified by a handle (generation &lt;&lt; 32 | slot)
+ * which stays unique after the slot is reused, so stale handles are simply
+ * reported as not present.
+ *
+ * With a tick the queue is a hierarchical timing wheel (Varghese and Lauck
+ * 1987) in front of the heap: events beyond the current tick wait in
+ * buckets of WHEEL_LEVELS wheels of WHEEL_SLOTS slots each, each level a
+ * WHEEL_SLOTS times coarser tick, and only reach the heap when the wheel
+ * turns to their tick.  Adding and removing such an event is O(1), and the
+ * heap only holds the events of about one tick, so many long lived timers
+ * (thousands of connections each with a retransmission timer restarted on
+ * every ACK) stay cheap.  Events still leave in the same order as without
+ * a wheel; the tick only decides how many share the heap.
+ */
+public class EventQueue {
+
+    public static final byte TIMER_INTERRUPT = 0;
+    public static final byte FROM_LAYER5 = 1;
+    public static final byte FROM_LAYER3 = 2;
+
+    private static final int ARITY = 4;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SLOTS = 1 << WHEEL_BITS;
+    private static final int WHEEL_LEVELS = 4;   // spans 2^24 ticks, later events go round the top level again
+    private static final int FREE = -1;         // heapIndex of a free slot, events in the wheel have -2 - bucket
+
+    // per slot event data
+    private double[] time;
+    private long[] order;
+    private byte[] type;
+    private int[] endpoint;
+    private int[] tag;
+    private TransportLayerPacket[] packet;
+    private int[] generation;
+    private int[] heapIndex;
+
+    // heap of slots, and the free slots below
+    private int[] heap;
+    private int size;
+    private int[] free;
+    private int freeCount;
+    private long nextOrder;
+
+    // the timing wheel, when there is a tick: the slots in each bucket are a doubly linked list
+    private final double ticksPerUnit;
+    private int[] next;
+    private int[] prev;
+    private int[] bucketHead;
+    private int[] levelSize;
+    private int wheelSize;
+    private long cursor;    // the next tick to move to the heap, events of earlier ticks go straight to the heap
+
+    // the event returned by the last call to poll()
+    private double polledTime;
+    private byte polledType;
+    private int polledEndpoint;
+    private int polledTag;
+    private long polledHandle;
+    private TransportLayerPacket polledPacket;
+
+    public EventQueue() {
+        this(64);
+    }
+
+    public EventQueue(int capacity) {
+        this(capacity, 0.0);
+    }
+
+    /**
+     * @param capacity the number of events to make room for, at least 1.
+     * @param tick the width in simulation time of a timing wheel slot, or 0
+     * for a plain heap.
+     */
+    public EventQueue(int capacity, double tick) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        if (tick < 0) {
+            throw new IllegalArgumentException("tick must not be negative");
+        }
+        ticksPerUnit = tick > 0 ? 1 / tick : 0;
+        if (tick > 0) {
+            next = new int[capacity];
+            prev = new int[capacity];
+            bucketHead = new int[WHEEL_LEVELS * WHEEL_SLOTS];
+            Arrays.fill(bucketHead, FREE);
+            levelSize = new int[WHEEL_LEVELS];
+        }
+        time = new double[capacity];
+        order = new long[capacity];
+        type = new byte[capacity];
+        endpoint = new int[capacity];
+        tag = new int[capacity];
+        packet = new TransportLayerPacket[capacity];
+        generation = new int[capacity];
+        heapIndex = new int[capacity];
+        heap = new int[capacity];
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = capacity - 1 - i;
+            generation[i] = 1;
+            heapIndex[i] = FREE;
+        }
+        freeCount = capacity;
+    }
+
+    /**
+     * Schedule an event.
+     * @param evTime the simulation time of the event.
+     * @param evType TIMER_INTERRUPT, FROM_LAYER5 or FROM_LAYER3.
+     * @param evEndpoint id of the TransportLayer the event is delivered to.
+     * @param pkt the packet for FROM_LAYER3 events, otherwise null.
+     * @param evTag timer tag for TIMER_INTERRUPT events.
+     * @return a non zero handle for remove(long) and contains(long).
+     */
+    public long add(double evTime, byte evType, int evEndpoint, TransportLayerPacket pkt, int evTag) {
+        if (freeCount == 0) {
+            grow();
+        }
+        int slot = free[--freeCount];
+        time[slot] = evTime;
+        order[slot] = nextOrder++;
+        type[slot] = evType;
+        endpoint[slot] = evEndpoint;
+        tag[slot] = evTag;
+        packet[slot] = pkt;
+        if (ticksPerUnit == 0) {
+            push(slot);
+        } else {
+            long tick = tickOf(evTime);
+            if (size + wheelSize == 0) {
+                cursor = tick;  // start the wheel wherever the events are
+            }
+            if (tick < cursor) {
+                push(slot);
+            } else {
+                wheelInsert(slot, tick);
+            }
+        }
+        return handleOf(slot);
+    }
+
+    private void push(int slot) {
+        heap[size] = slot;
+        heapIndex[slot] = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+    /**
+     * Remove the event at the head of the queue.  Its fields are available
+     * through the polled*() accessors until the next call to poll().
+     * @return false if the queue is empty.
+     */
+    public boolean poll() {
+        if (wheelSize > 0) {
+            turnWheel();
+        }
+        if (size == 0) {
+            return false;
+        }
+        int slot = heap[0];
+        polledTime = time[slot];
+        polledType = type[slot];
+        polledEndpoint = endpoint[slot];
+        polledTag = tag[slot];
+        polledPacket = packet[slot];
+        polledHandle = handleOf(slot);
+        removeAt(0);
+        return true;
+    }
+
+    /**
+     * Remove a scheduled event in O(log n).
+     * @param handle the value returned by add(...).
+     * @return true if the event was still in the queue.
+     */
+    public boolean remove(long handle) {
+        int slot = slotOf(handle);
+        if (slot < 0) {
+            return false;
+        }
+        if (heapIndex[slot] >= 0) {
+            removeAt(heapIndex[slot]);
+        } else {
+            unlink(slot);
+            release(slot);
+        }
+        return true;
+    }
+
+    /**
+     * @param handle the value returned by add(...).
+     * @return true if the event has neither been polled nor removed.
+     */
+    public boolean contains(long handle) {
+        return slotOf(handle) >= 0;
+    }
+
+    public int size() {
+        return size + wheelSize;
+    }
+
+    public boolean isEmpty() {
+        return size + wheelSize == 0;
+    }
+
+    /**
+     * @return the time of the event poll() would return next, the queue must not be empty.
+     */
+    public double peekTime() {
+        if (wheelSize > 0) {
+            turnWheel();
+        }
+        return time[heap[0]];
+    }
+
+    public double polledTime() {
+        return polledTime;
+    }
+
+    public byte polledType() {
+        return polledType;
+    }
+
+    public int polledEndpoint() {
+        return polledEndpoint;
+    }
+
+    public int polledTag() {
+        return polledTag;
+    }
+
+    public long polledHandle() {
+        return polledHandle;
+    }
+
+    public TransportLayerPacket polledPacket() {
+        return polledPacket;
+    }
+
+    /**
+     * A copy of the queued slots in the order they will be polled, for
+     * debugging.  This allocates and is O(n log n).
+     */
+    public int[] sortedSlots() {
+        Integer[] slots = new Integer[size()];
+        int n = 0;
+        for (int slot = 0; slot < heapIndex.length; slot++) {
+            if (heapIndex[slot] != FREE) {
+                slots[n++] = slot;
+            }
+        }
+        Arrays.sort(slots, (a, b) -> less(a, b) ? -1 : (less(b, a) ? 1 : 0));
+        int[] result = new int[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            result[i] = slots[i];
+        }
+        return result;
+    }
+
+    public double timeOf(int slot) {
+        return time[slot];
+    }
+
+    public byte typeOf(int slot) {
+        return type[slot];
+    }
+
+    public TransportLayerPacket packetOf(int slot) {
+        return packet[slot];
+    }
+
+    private long handleOf(int slot) {
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    private int slotOf(long handle) {
+        int slot = (int) handle;
+        if (handle == 0 || slot < 0 || slot >= generation.length) {
+            return -1;
+        }
+        if (generation[slot] != (int) (handle >>> 32) || heapIndex[slot] == FREE) {
+            return -1;
+        }
+        return slot;
+    }
+
+    private void removeAt(int index) {
+        int slot = heap[index];
+        size--;
+        if (index != size) {
+            int last = heap[size];
+            heap[index] = last;
+            heapIndex[last] = index;
+            siftDown(index);
+            if (heap[index] == last) {
+                siftUp(index);
+            }
+        }
+        release(slot);
+    }
+
+    private void release(int slot) {
+        heapIndex[slot] = FREE;
+        packet[slot] = null;
+        generation[slot]++;
+        if (generation[slot] == 0) {
+            generation[slot] = 1; // handles are never 0
+        }
+        free[freeCount++] = slot;
+    }
+
+    private long tickOf(double evTime) {
+        return (long) (evTime * ticksPerUnit);
+    }
+
+    /*
+     * Puts a slot in the bucket of its tick: the lowest level whose wheel reaches that far, in the slot the
+     * cursor will turn to at that tick.
+     */
+    private void wheelInsert(int slot, long tick) {
+        long distance = tick - cursor;
+        int level = 0;
+        while (level < WHEEL_LEVELS - 1 && distance >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        if (level == WHEEL_LEVELS - 1 && distance >= 1L << (WHEEL_BITS * WHEEL_LEVELS)) {
+            tick = cursor + (1L << (WHEEL_BITS * WHEEL_LEVELS)) - 1;   // come back round, then place it again
+        }
+        int bucket = level * WHEEL_SLOTS + (int) ((tick >>> (WHEEL_BITS * level)) & (WHEEL_SLOTS - 1));
+        int head = bucketHead[bucket];
+        next[slot] = head;
+        prev[slot] = FREE;
+        if (head != FREE) {
+            prev[head] = slot;
+        }
+        bucketHead[bucket] = slot;
+        heapIndex[slot] = -2 - bucket;
+        levelSize[level]++;
+        wheelSize++;
+    }
+
+    private void unlink(int slot) {
+        int bucket = -2 - heapIndex[slot];
+        if (prev[slot] != FREE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            bucketHead[bucket] = next[slot];
+        }
+        if (next[slot] != FREE) {
+            prev[next[slot]] = prev[slot];
+        }
+        levelSize[bucket / WHEEL_SLOTS]--;
+        wheelSize--;
+    }
+
+    /*
+     * Turns the wheel until no event in it can come before the head of the heap: at each tick the buckets of the
+     * coarser levels that start there are spread over the finer ones, then the tick's bucket goes to the heap.
+     * Runs of empty ticks are skipped to the next tick where a non-empty level starts a bucket.
+     */
+    private void turnWheel() {
+        while (wheelSize > 0 && (size == 0 || cursor <= tickOf(time[heap[0]]))) {
+            for (int level = WHEEL_LEVELS - 1; level > 0; level--) {
+                if ((cursor & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    int bucket = level * WHEEL_SLOTS + (int) ((cursor >>> (WHEEL_BITS * level)) & (WHEEL_SLOTS - 1));
+                    for (int slot = bucketHead[bucket], nextSlot; slot != FREE; slot = nextSlot) {
+                        nextSlot = next[slot];
+                        unlink(slot);
+                        wheelInsert(slot, tickOf(time[slot]));
+                    }
+                }
+            }
+            int empty = 0;
+            while (levelSize[empty] == 0) {
+                empty++;
+            }
+            if (empty > 0) {
+                cursor = (cursor | ((1L << (WHEEL_BITS * empty)) - 1)) + 1;
+                continue;
+            }
+            int bucket = (int) (cursor & (WHEEL_SLOTS - 1));
+            for (int slot = bucketHead[bucket], nextSlot; slot != FREE; slot = nextSlot) {
+                nextSlot = next[slot];
+                unlink(slot);
+                push(slot);
+            }
+            cursor++;
+        }
+    }
+
+    private boolean less(int a, int b) {
+        return time[a] < time[b] || (time[a] == time[b] && order[a] < order[b]);
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / ARITY;
+            int parentSlot = heap[parent];
+            if (!less(slot, parentSlot)) {
+                break;
+            }
+            heap[index] = parentSlot;
+            heapIndex[parentSlot] = index;
+            index = parent;
+        }
+        heap[index] = slot;
+        heapIndex[slot] = index;
+    }
+
+    private void siftDown(int index) {
+        int slot = heap[index];
+        while (true) {
+            int first = index * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int best = first;
+            int end = Math.min(first + ARITY, size);
+            for (int c = first + 1; c < end; c++) {
+                if (less(heap[c], heap[best])) {
+                    best = c;
+                }
+            }
+            if (!less(heap[best], slot)) {
+                break;
+            }
+            heap[index] = heap[best];
+            heapIndex[heap[index]] = index;
+            index = best;
+        }
+        heap[index] = slot;
+        heapIndex[slot] = index;
+    }
+
+    private void grow() {
+        int oldCapacity = time.length;
+        int capacity = oldCapacity * 2;
+        time = Arrays.copyOf(time, capacity);
+        order = Arrays.copyOf(order, capacity);
+        type = Arrays.copyOf(type, capacity);
+        endpoint = Arrays.copyOf(endpoint, capacity);
+        tag = Arrays.copyOf(tag, capacity);
+        packet = Arrays.copyOf(packet, capacity);
+        generation = Arrays.copyOf(generation, capacity);
+        heapIndex = Arrays.copyOf(heapIndex, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+        free = Arrays.copyOf(free, capacity);
+        if (next != null) {
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+        }
+        for (int i = capacity - 1; i >= oldCapacity; i--) {
+            free[freeCount++] = i;
+            generation[i] = 1;
+            heapIndex[i] = FREE;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the fate of every packet a NetworkSimulator transmits (see
+ * NetworkSimulator.setFateRecorder) to a file, so FateReplay can put a
+ * different protocol through exactly the same network.  The file is written
+ * through memory mapped chunks allocated as it grows, so a trace of any
+ * length costs a fixed amount of memory.
+ *
+ * Layout: the 8 byte MAGIC, then chunks of CHUNK bytes (the last one may be
+ * cut short), each holding the records of one direction in the order the
+ * packets were sent.  A chunk starts with its direction (a byte, TO_RECEIVER
+ * or TO_SENDER) and the number of record bytes that follow (an int).  A
+ * record starts with a flags byte: bits 0-1 are the outcome (delivered,
+ * lost or dropped by the channel), bits 2-3 the corruption (none, payload,
+ * seqnum or acknum), bit 4 is set if a delivered packet was duplicated and
+ * bit 5 if it was reordered.  A corrupted payload is followed by the number
+ * of bytes overwritten and, for each, its offset (int) and new value (byte).
+ * Delivered packets end with their delay (double), the delivery time minus
+ * the send time, and that of the duplicate if there is one.  All numbers
+ * are big endian.
+ */
+public class FateRecorder implements Closeable {
+
+    static final byte[] MAGIC = {'R', 'D', 'T', 'F', 'A', 'T', 'E', '1'};
+    static final int CHUNK = 1 << 20;
+    static final int CHUNK_HEADER = 5;
+    static final int MAX_RECORD = 2 + PacketFate.MAX_WRITES * 5 + 16;
+    static final int DUPLICATED = 1 << 4;
+    static final int REORDERED = 1 << 5;
+
+    private final FileChannel file;
+    private final MappedByteBuffer[] chunks = new MappedByteBuffer[2];  // the open chunk of each direction
+    private final long[] chunkOffsets = new long[2];
+    private long end = MAGIC.length;    // file offset after the last chunk allocated
+    private long records;
+
+    /**
+     * Creates or truncates the file.
+     */
+    public FateRecorder(Path path) throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        file.map(FileChannel.MapMode.READ_WRITE, 0, MAGIC.length).put(MAGIC);
+    }
+
+    /**
+     * @return the number of packets recorded so far.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the size of the trace in bytes once it is closed.
+     */
+    public long getSize() {
+        long size = end;
+        for (int direction = 0; direction < 2; direction++) {
+            if (chunks[direction] != null && chunkOffsets[direction] + CHUNK == end) {
+                size = chunkOffsets[direction] + chunks[direction].position();
+            }
+        }
+        return size;
+    }
+
+    void record(int direction, PacketFate fate) {
+        MappedByteBuffer out = chunks[direction];
+        if (out == null || out.remaining() < MAX_RECORD) {
+            out = newChunk(direction);
+        }
+        boolean delivered = fate.outcome == PacketFate.DELIVERED;
+        boolean duplicated = delivered && !Double.isNaN(fate.duplicateDelay);
+        out.put((byte) (fate.outcome | fate.corruption << 2 | (duplicated ? DUPLICATED : 0)
+                | (delivered && fate.reordered ? REORDERED : 0)));
+        if (fate.corruption == PacketFate.PAYLOAD) {
+            out.put((byte) fate.writes);
+            for (int i = 0; i < fate.writes; i++) {
+                out.putInt(fate.at[i]);
+                out.put(fate.to[i]);
+            }
+        }
+        if (delivered) {
+            out.putDouble(fate.delay);
+        }
+        if (duplicated) {
+            out.putDouble(fate.duplicateDelay);
+        }
+        records++;
+    }
+
+    private MappedByteBuffer newChunk(int direction) {
+        finishChunk(direction);
+        try {
+            MappedByteBuffer out = file.map(FileChannel.MapMode.READ_WRITE, end, CHUNK);
+            out.put((byte) direction);
+            out.putInt(0);
+            chunks[direction] = out;
+            chunkOffsets[direction] = end;
+            end += CHUNK;
+            return out;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Writes the length of the open chunk of direction into its header.
+     */
+    private void finishChunk(int direction) {
+        if (chunks[direction] != null) {
+            chunks[direction].putInt(1, chunks[direction].position() - CHUNK_HEADER);
+        }
+    }
+
+    /**
+     * Cuts the file after the records of its last chunk and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        long size = getSize();
+        finishChunk(0);
+        finishChunk(1);
+        chunks[0] = null;
+        chunks[1] = null;
+        file.truncate(size);
+        file.close();
+    }
+}
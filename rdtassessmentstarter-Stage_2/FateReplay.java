@@ -0,0 +1,163 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Replays a trace written by FateRecorder (see
+ * NetworkSimulator.setFateReplay): the n'th packet sent in a direction gets
+ * the fate the n'th packet in that direction had when the trace was
+ * recorded, whatever protocol sends it.  It is lost, dropped, corrupted,
+ * duplicated or reordered the same way, and delivered after the same delay,
+ * but never before a packet sent ahead of it in the same direction unless
+ * it was reordered.  A corrupted payload
+ * offset beyond a shorter payload wraps around, and a payload corruption
+ * of a packet without payload hits its seqnum, as it would have live.
+ * Packets beyond the end of the trace in a direction go through the live
+ * network model again.
+ *
+ * Each direction maps its own chunks of the file one at a time, so a trace
+ * of any length costs a fixed amount of memory.  The simulator
+ * rewinds the replay at the start of every run.
+ */
+public class FateReplay implements Closeable {
+
+    private final FileChannel file;
+    private final long size;
+    private final Cursor[] cursors = {new Cursor(), new Cursor()};
+    private final double[] lastDelivery = new double[2];
+
+    public FateReplay(Path path) throws IOException {
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        size = file.size();
+        byte[] magic = new byte[FateRecorder.MAGIC.length];
+        if (size >= magic.length) {
+            file.map(FileChannel.MapMode.READ_ONLY, 0, magic.length).get(magic);
+        }
+        if (!Arrays.equals(magic, FateRecorder.MAGIC)) {
+            file.close();
+            throw new IOException(path + " is not a fate trace");
+        }
+        rewind();
+    }
+
+    /**
+     * Start again from the first packet in each direction.
+     */
+    public void rewind() {
+        cursors[0].rewind();
+        cursors[1].rewind();
+        lastDelivery[0] = Double.NEGATIVE_INFINITY;
+        lastDelivery[1] = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return the number of packets replayed in a direction since the last rewind.
+     */
+    public long getReplayed(int direction) {
+        return cursors[direction].replayed;
+    }
+
+    /**
+     * Fills in the fate of the next packet in direction.
+     * @return false if the trace has no more packets in that direction.
+     */
+    boolean next(int direction, PacketFate fate) {
+        Cursor cursor = cursors[direction];
+        MappedByteBuffer in = cursor.mapped;
+        if (in == null || !in.hasRemaining()) {
+            if (!cursor.nextChunk(direction)) {
+                return false;
+            }
+            in = cursor.mapped;
+        }
+        int flags = in.get();
+        fate.outcome = flags & 3;
+        fate.corruption = (flags >> 2) & 3;
+        if (fate.corruption == PacketFate.PAYLOAD) {
+            fate.writes = in.get();
+            for (int i = 0; i < fate.writes; i++) {
+                fate.at[i] = in.getInt();
+                fate.to[i] = in.get();
+            }
+        }
+        fate.reordered = (flags & FateRecorder.REORDERED) != 0;
+        if (fate.outcome == PacketFate.DELIVERED) {
+            fate.delay = in.getDouble();
+        }
+        fate.duplicateDelay = (flags & FateRecorder.DUPLICATED) != 0 ? in.getDouble() : Double.NaN;
+        cursor.replayed++;
+        return true;
+    }
+
+    /**
+     * The delivery time of a packet sent at time with a replayed delay,
+     * kept after the last one delivered in the same direction unless it was
+     * reordered, when it doesn't hold up the packets behind it either.
+     */
+    double deliveryTime(int direction, double time, double delay, boolean reordered) {
+        double deliveryTime = time + delay;
+        if (reordered) {
+            return deliveryTime;
+        }
+        if (deliveryTime <= lastDelivery[direction]) {
+            deliveryTime = Math.nextUp(lastDelivery[direction]);
+        }
+        lastDelivery[direction] = deliveryTime;
+        return deliveryTime;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cursors[0].mapped = null;
+        cursors[1].mapped = null;
+        file.close();
+    }
+
+    /*
+     * The chunk of one direction being read.
+     */
+    private class Cursor {
+        MappedByteBuffer mapped;
+        long offset;        // file offset of the next chunk to look at
+        long replayed;
+        final ByteBuffer header = ByteBuffer.allocate(FateRecorder.CHUNK_HEADER);
+
+        void rewind() {
+            mapped = null;
+            offset = FateRecorder.MAGIC.length;
+            replayed = 0;
+        }
+
+        /*
+         * Maps the records of the next chunk of direction.
+         * @return false at the end of the file.
+         */
+        boolean nextChunk(int direction) {
+            mapped = null;
+            try {
+                while (offset < size) {
+                    header.clear();
+                    if (file.read(header, offset) < FateRecorder.CHUNK_HEADER) {
+                        break;  // cut short
+                    }
+                    long chunk = offset;
+                    offset += FateRecorder.CHUNK;
+                    int length = header.getInt(1);
+                    if (header.get(0) == direction && length > 0) {
+                        mapped = file.map(FileChannel.MapMode.READ_ONLY, chunk + FateRecorder.CHUNK_HEADER, length);
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streams a file through the simulation: the file is cut into messages of
+ * at most mss bytes, read from a memory mapped window that slides along the
+ * file, so inputs of many gigabytes never sit on the heap.  Every message
+ * is one packet with the transport layers in this package, so the MSS is
+ * the largest payload on the wire.
+ *
+ * The receiving end reassembles the stream: delivered messages go through
+ * an incremental digest, and to an output channel if one is set.  The
+ * source is digested the same way as it is read, so once the run is over
+ * isVerified() tells whether the receiver got exactly the file, in order,
+ * without a second pass over either side.  Use it with
+ * NetworkSimulator.setWorkload, and a send buffer to bound the messages
+ * queued at the sender.
+ */
+public class FileWorkload implements Workload, Closeable {
+
+    private static final long MAP_WINDOW = 1 << 26;  // bytes mapped at a time, rounded down to whole messages
+
+    private final FileChannel file;
+    private final long size;
+    private final int mss;
+    private final int numMessages;
+    private final long windowBytes;
+    private final MessageDigest source;
+    private final MessageDigest sink;
+    private WritableByteChannel output;
+
+    private MappedByteBuffer mapped;    // the window being read, null before the first message
+    private long position;              // file offset of the end of the mapped window
+    private long bytesDelivered;
+    private byte[] sourceHash;          // both digests, once isVerified() has finished them
+    private byte[] sinkHash;
+
+    /**
+     * A workload that checks the file with SHA-256.
+     */
+    public FileWorkload(Path path, int mss) throws IOException {
+        this(path, mss, "SHA-256");
+    }
+
+    /**
+     * @param path the file to send, it must not be empty.
+     * @param mss the largest message in bytes.
+     * @param algorithm the MessageDigest algorithm to check the file with, e.g. "SHA-256".
+     * @throws IllegalArgumentException if the file is empty, has more than
+     * Integer.MAX_VALUE messages, or the algorithm isn't available.
+     */
+    public FileWorkload(Path path, int mss, String algorithm) throws IOException {
+        if (mss < 1) {
+            throw new IllegalArgumentException("mss must be positive");
+        }
+        try {
+            source = MessageDigest.getInstance(algorithm);
+            sink = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("no digest " + algorithm, e);
+        }
+        file = FileChannel.open(path, StandardOpenOption.READ);
+        size = file.size();
+        long messages = (size + mss - 1) / mss;
+        if (messages == 0 || messages > Integer.MAX_VALUE) {
+            file.close();
+            throw new IllegalArgumentException(path + " is empty or has too many messages for an mss of " + mss);
+        }
+        this.mss = mss;
+        numMessages = (int) messages;
+        windowBytes = Math.max(1, MAP_WINDOW / mss) * mss;
+    }
+
+    /**
+     * Also write the delivered data to output, e.g. a FileChannel, to keep
+     * the received copy.  It gets the data of every run.
+     */
+    public void setOutput(WritableByteChannel output) {
+        this.output = output;
+    }
+
+    @Override
+    public int getNumMessages() {
+        return numMessages;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getMss() {
+        return mss;
+    }
+
+    /**
+     * @return the bytes delivered to the receiving application layer so far.
+     */
+    public long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    @Override
+    public byte[] next() {
+        if (mapped == null || !mapped.hasRemaining()) {
+            if (position >= size) {
+                throw new IllegalStateException("all " + numMessages + " messages have been sent");
+            }
+            long length = Math.min(windowBytes, size - position);
+            try {
+                mapped = file.map(FileChannel.MapMode.READ_ONLY, position, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position += length;
+        }
+        byte[] segment = new byte[Math.min(mss, mapped.remaining())];
+        mapped.get(segment);
+        source.update(segment);
+        return segment;
+    }
+
+    @Override
+    public void deliver(byte[] data) {
+        sink.update(data);
+        bytesDelivered += data.length;
+        if (output != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            try {
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        mapped = null;
+        position = 0;
+        bytesDelivered = 0;
+        source.reset();
+        sink.reset();
+        sourceHash = null;
+        sinkHash = null;
+    }
+
+    /**
+     * Finishes both digests, call it once the run is over.
+     * @return true if the receiver got every byte of the file in order.
+     */
+    public boolean isVerified() {
+        if (sourceHash == null) {
+            sourceHash = source.digest();
+            sinkHash = sink.digest();
+        }
+        return bytesDelivered == size && MessageDigest.isEqual(sourceHash, sinkHash);
+    }
+
+    /**
+     * @return the digest of the received data in hex, after isVerified().
+     */
+    public String getDigest() {
+        StringBuilder sb = new StringBuilder();
+        if (sinkHash != null) {
+            for (byte b : sinkHash) {
+                sb.append(String.format("%02x", b));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        file.close();
+    }
+}
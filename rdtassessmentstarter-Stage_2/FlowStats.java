@@ -0,0 +1,78 @@
+/**
+ * The counters of one flow of a simulation, see Metrics.getFlowStats.
+ * Messages are counted at the end they are delivered to, so a bidirectional
+ * flow adds up both directions.
+ */
+public class FlowStats {
+
+    private final int flow;
+    private final long delivered;
+    private final long inTransit;
+    private final double meanLatency;
+    private final double goodput;
+    private final long senderPackets;
+    private final long receiverPackets;
+
+    FlowStats(int flow, long delivered, long inTransit, double meanLatency, double goodput,
+              long senderPackets, long receiverPackets) {
+        this.flow = flow;
+        this.delivered = delivered;
+        this.inTransit = inTransit;
+        this.meanLatency = meanLatency;
+        this.goodput = goodput;
+        this.senderPackets = senderPackets;
+        this.receiverPackets = receiverPackets;
+    }
+
+    public int getFlow() {
+        return flow;
+    }
+
+    /**
+     * @return messages delivered to the application layer.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return messages handed to the flow's transport layers and not delivered yet.
+     */
+    public long getInTransit() {
+        return inTransit;
+    }
+
+    /**
+     * @return mean end to end latency of the delivered messages, NaN if there are none.
+     */
+    public double getMeanLatency() {
+        return meanLatency;
+    }
+
+    /**
+     * @return messages delivered per unit of simulation time.
+     */
+    public double getGoodput() {
+        return goodput;
+    }
+
+    /**
+     * @return packets the sender handed to the network, including retransmissions.
+     */
+    public long getSenderPackets() {
+        return senderPackets;
+    }
+
+    /**
+     * @return packets the receiver handed to the network, e.g. ACKs.
+     */
+    public long getReceiverPackets() {
+        return receiverPackets;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("flow %d: delivered=%d inTransit=%d meanLatency=%.1f goodput=%.5f senderPackets=%d receiverPackets=%d",
+                flow, delivered, inTransit, meanLatency, goodput, senderPackets, receiverPackets);
+    }
+}
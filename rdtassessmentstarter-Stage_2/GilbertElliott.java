@@ -0,0 +1,78 @@
+import java.util.SplittableRandom;
+
+/**
+ * Bursty loss with the Gilbert-Elliott model: the channel is either good or
+ * bad, and loses packets with a different probability in each state.
+ * Before each packet a good channel turns bad with probability p and a bad
+ * one good with probability r, so bursts last 1/r packets on average and
+ * the channel is bad a fraction p / (p + r) of the time.
+ *
+ * Rather than making these draws per packet, the time in each state is
+ * drawn whole (it is geometric) and the losses within it are skip-sampled,
+ * so the cost per packet doesn't grow with the packet rate.
+ */
+public class GilbertElliott implements Impairment {
+
+    private final SkipSampler toBad;
+    private final SkipSampler toGood;
+    private final SkipSampler lossGood;
+    private final SkipSampler lossBad;
+    private boolean bad;
+    private long left = -1;     // packets left in the current state, -1 to draw the time in it
+
+    /**
+     * The Gilbert model: no loss in the good state, every packet lost in the bad one.
+     */
+    public GilbertElliott(double p, double r) {
+        this(p, r, 0.0, 1.0);
+    }
+
+    /**
+     * @param p the probability of going from good to bad before a packet.
+     * @param r the probability of going from bad to good before a packet.
+     * @param lossGood the loss probability in the good state.
+     * @param lossBad the loss probability in the bad state.
+     */
+    public GilbertElliott(double p, double r, double lossGood, double lossBad) {
+        if (r <= 0) {
+            throw new IllegalArgumentException("r must be positive, or the channel stays bad for ever");
+        }
+        toBad = new SkipSampler(p);
+        toGood = new SkipSampler(r);
+        this.lossGood = new SkipSampler(lossGood);
+        this.lossBad = new SkipSampler(lossBad);
+    }
+
+    /**
+     * @return the long run fraction of packets lost.
+     */
+    public double getMeanLoss() {
+        double p = toBad.getProbability();
+        double r = toGood.getProbability();
+        return (r * lossGood.getProbability() + p * lossBad.getProbability()) / (p + r);
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+        if (left == 0) {
+            bad = !bad;
+            left = -1;
+        }
+        if (left < 0) {
+            long gap = (bad ? toGood : toBad).gap(random);   // packets before the state changes, then the one that changes it
+            left = gap == Long.MAX_VALUE ? gap : gap + 1;
+        }
+        left--;
+        return (bad ? lossBad : lossGood).next(random) ? LOSE : 0;
+    }
+
+    @Override
+    public void reset() {
+        bad = false;
+        left = -1;
+        toBad.reset();
+        toGood.reset();
+        lossGood.reset();
+        lossBad.reset();
+    }
+}
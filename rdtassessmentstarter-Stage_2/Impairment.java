@@ -0,0 +1,40 @@
+import java.util.SplittableRandom;
+
+/**
+ * A model of what one direction of the network does to packets besides
+ * the simulator's independent loss and corruption: losses that come in
+ * bursts, reordering, duplication.  Set with
+ * NetworkSimulator.setImpairments; every packet sent in that direction
+ * goes through each model in turn, before its channel.  See BernoulliLoss,
+ * GilbertElliott, Reordering and Duplication.
+ *
+ * The models in this package skip-sample: they draw how many packets pass
+ * before the next one they hit rather than a random number per packet, so
+ * low probabilities cost next to nothing however many packets are sent.
+ */
+public interface Impairment {
+
+    int LOSE = 1;
+    int DUPLICATE = 2;
+    int REORDER = 4;
+
+    /**
+     * The next packet enters the network.
+     * @param random the simulator's impairment stream, the only randomness a model may use.
+     * @return what happens to it: LOSE, DUPLICATE and REORDER or'ed together, 0 for nothing.
+     */
+    int next(SplittableRandom random);
+
+    /**
+     * @return how much later than its channel would deliver it a packet
+     * marked REORDER arrives; the packets sent meanwhile overtake it.
+     */
+    default double getReorderDelay() {
+        return 0.0;
+    }
+
+    /**
+     * Forget the state of the previous run, called when a simulation run starts.
+     */
+    void reset();
+}
@@ -0,0 +1,93 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The integrity check carried in TransportLayerPacket's checksum field,
+ * selected per simulation with NetworkSimulator.setIntegrity.  All of them
+ * cover the sequence number, the acknowledgement number (as big endian
+ * 32 bit words) and the payload, and are computed in place without
+ * temporary arrays.
+ *
+ *   SUM       the original 16 bit sum of the header fields and the signed
+ *             payload bytes.  Misses any corruption that preserves the sum,
+ *             e.g. one byte going up by as much as another goes down.
+ *   INTERNET  the 16 bit ones' complement sum of 16 bit words (RFC 1071),
+ *             summed eight bytes at a time.
+ *   CRC32C    CRC-32C (Castagnoli) from java.util.zip, which the JIT
+ *             replaces with the CPU's CRC instructions where available.
+ *             Detects every error burst of up to 32 bits.
+ */
+public enum Integrity {
+
+    SUM {
+        @Override
+        public int checksum(int seqnum, int acknum, byte[] data) {
+            int checksum = seqnum + acknum;
+            for (byte a : data) {
+                checksum += a;
+            }
+            return ((1 << 16) - 1) ^ (checksum & 0xFFFF); // ones' complement of the low 16 bits
+        }
+    },
+
+    INTERNET {
+        @Override
+        public int checksum(int seqnum, int acknum, byte[] data) {
+            long sum = (seqnum >>> 16) + (seqnum & 0xFFFF) + (acknum >>> 16) + (acknum & 0xFFFF);
+            int n = data.length;
+            int i = 0;
+            // adding 32 bit words and folding the carries at the end gives the same ones' complement sum
+            for (; i + 8 <= n; i += 8) {
+                long word = (long) LONGS.get(data, i);
+                sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            }
+            for (; i + 1 < n; i += 2) {
+                sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+            }
+            if (i < n) {
+                sum += (data[i] & 0xFF) << 8; // odd length, pad with a zero byte
+            }
+            while ((sum >>> 16) != 0) {
+                sum = (sum & 0xFFFF) + (sum >>> 16);
+            }
+            return (int) (~sum & 0xFFFF);
+        }
+    },
+
+    CRC32C {
+        @Override
+        public int checksum(int seqnum, int acknum, byte[] data) {
+            java.util.zip.CRC32C crc = CRCS.get();
+            crc.reset();
+            updateInt(crc, seqnum);
+            updateInt(crc, acknum);
+            crc.update(data, 0, data.length);
+            return (int) crc.getValue();
+        }
+    };
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // CRC32C objects are stateful, one per thread so that parallel sweeps can share the algorithm
+    private static final ThreadLocal<java.util.zip.CRC32C> CRCS = ThreadLocal.withInitial(java.util.zip.CRC32C::new);
+
+    private static void updateInt(java.util.zip.CRC32C crc, int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+
+    /**
+     * @return the checksum of the given header fields and payload.
+     */
+    public abstract int checksum(int seqnum, int acknum, byte[] data);
+
+    /**
+     * @return true if pkt's checksum field matches its contents.
+     */
+    public boolean verify(TransportLayerPacket pkt) {
+        return checksum(pkt.getSeqnum(), pkt.getAcknum(), pkt.getData()) == pkt.getChksum();
+    }
+}
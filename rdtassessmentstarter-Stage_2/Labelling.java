@@ -0,0 +1,8 @@
+/*
+ * A TransportLayer that can replace the data of its packets with "Packet <n>" for testing, e.g. so the simulator can
+ * turn that off when it carries a real Workload.
+ */
+public interface Labelling {
+
+    void setLabelPackets(boolean labelPackets);
+}
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative values (e.g. latencies) in logarithmic
+ * buckets: every power of two is split into 16 linear sub-buckets, so a
+ * recorded value is known to within 1/16 (6.25%) of itself, from 2^-20 up to
+ * 2^40.  Smaller values share the lowest bucket, larger ones the highest.
+ * Recording is a few arithmetic operations on a fixed array and never
+ * allocates.  The exact count, sum, minimum and maximum are kept as well.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MIN_EXPONENT = -20;
+    private static final int MAX_EXPONENT = 40;
+
+    // bucket 0 holds zero, bucket 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub holds [2^e (1 + sub/16), 2^e (1 + (sub+1)/16))
+    private final long[] counts = new long[1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS];
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Add a value, negative values and NaN count as zero.
+     */
+    public void record(double value) {
+        value = value > 0 ? value : 0.0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private static int bucket(double value) {
+        if (!(value > 0)) {
+            return 0;
+        }
+        int exponent = Math.getExponent(value);
+        if (exponent < MIN_EXPONENT) {
+            return 1;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return 1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (Double.doubleToRawLongBits(value) >>> (52 - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the middle of a bucket's range.
+     */
+    private static double bucketValue(int bucket) {
+        if (bucket == 0) {
+            return 0.0;
+        }
+        int exponent = (bucket - 1) / SUB_BUCKETS + MIN_EXPONENT;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        return Math.scalb(1.0 + (sub + 0.5) / SUB_BUCKETS, exponent);
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return the value below which that fraction of the recorded values
+     * lie, to within the bucket resolution, or NaN if nothing was recorded.
+     */
+    public double percentile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // the bucket's middle can lie outside the values actually seen
+                return Math.max(min, Math.min(max, bucketValue(i)));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Add the values recorded by other to this histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+}
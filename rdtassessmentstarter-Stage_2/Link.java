@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A point to point link with a bottleneck queue in front of it.  Packets
+ * are serialised one at a time at bandwidth bytes per unit of time, so a
+ * packet waits for the ones queued ahead of it, then travel for the
+ * propagation delay plus a uniformly distributed jitter.  The link stays
+ * FIFO: jitter never lets a packet overtake the one before it, nor arrive
+ * at the same time.
+ *
+ * The queue holds at most bufferPackets packets, including the one being
+ * serialised.  When it is full an arriving packet is dropped (drop tail),
+ * or, with setRed, packets are dropped early with a probability that grows
+ * with the average queue length (Random Early Detection, Floyd and
+ * Jacobson 1993).
+ */
+public class Link implements Channel {
+
+    private final double bandwidth;
+    private final double propagationDelay;
+    private final double jitter;
+    private final int bufferPackets;
+
+    // RED parameters, minThreshold < 0 means drop tail
+    private double minThreshold = -1;
+    private double maxThreshold;
+    private double maxProbability;
+    private double weight;
+
+    // serialisation finish times of the packets in the queue, a ring of power of two length
+    private double[] finish = new double[16];
+    private int head;
+    private int size;
+    private double lastArrival;
+    private double averageQueue;
+    private int sinceLastDrop;  // packets enqueued since the last RED drop
+    private long drops;
+
+    /**
+     * @param bandwidth bytes serialised per unit of simulation time.
+     * @param propagationDelay time from the end of serialisation to arrival.
+     * @param jitter extra delay, uniform between 0 and jitter.
+     * @param bufferPackets capacity of the bottleneck queue in packets, at least 1.
+     */
+    public Link(double bandwidth, double propagationDelay, double jitter, int bufferPackets) {
+        if (bandwidth <= 0 || propagationDelay < 0 || jitter < 0 || bufferPackets < 1) {
+            throw new IllegalArgumentException("invalid link parameters");
+        }
+        this.bandwidth = bandwidth;
+        this.propagationDelay = propagationDelay;
+        this.jitter = jitter;
+        this.bufferPackets = bufferPackets;
+    }
+
+    /**
+     * Use RED instead of drop tail.  The average queue length is an
+     * exponentially weighted moving average with the given weight, updated on
+     * every arrival.  Below minThreshold nothing is dropped, between the
+     * thresholds the drop probability rises linearly to maxProbability (spread
+     * out by the count of packets since the last drop), above maxThreshold
+     * every packet is dropped.  A full buffer still drops.
+     */
+    public void setRed(double minThreshold, double maxThreshold, double maxProbability, double weight) {
+        if (minThreshold < 0 || maxThreshold <= minThreshold || maxProbability <= 0 || maxProbability > 1
+                || weight <= 0 || weight > 1) {
+            throw new IllegalArgumentException("invalid RED parameters");
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.maxProbability = maxProbability;
+        this.weight = weight;
+    }
+
+    @Override
+    public double transmit(double now, int bytes, SplittableRandom random) {
+        // packets that have finished serialising have left the queue
+        while (size > 0 && finish[head] <= now) {
+            head = (head + 1) & (finish.length - 1);
+            size--;
+        }
+
+        if (size >= bufferPackets || (minThreshold >= 0 && redDrop(random))) {
+            drops++;
+            return Double.NaN;
+        }
+
+        double start = size > 0 ? finish[(head + size - 1) & (finish.length - 1)] : now;
+        double done = start + bytes / bandwidth;
+        if (size == finish.length) {
+            grow();
+        }
+        finish[(head + size) & (finish.length - 1)] = done;
+        size++;
+
+        double arrival = done + propagationDelay + (jitter > 0 ? jitter * random.nextDouble() : 0.0);
+        arrival = Math.max(arrival, Math.nextUp(lastArrival)); // one at a time, never two at the same instant
+        lastArrival = arrival;
+        return arrival;
+    }
+
+    private boolean redDrop(SplittableRandom random) {
+        averageQueue = (1 - weight) * averageQueue + weight * size;
+        if (averageQueue < minThreshold) {
+            sinceLastDrop = 0;
+            return false;
+        }
+        if (averageQueue >= maxThreshold) {
+            sinceLastDrop = 0;
+            return true;
+        }
+        double pb = maxProbability * (averageQueue - minThreshold) / (maxThreshold - minThreshold);
+        double pa = pb / Math.max(1e-9, 1 - sinceLastDrop * pb);
+        if (sinceLastDrop * pb >= 1 || random.nextDouble() < pa) {
+            sinceLastDrop = 0;
+            return true;
+        }
+        sinceLastDrop++;
+        return false;
+    }
+
+    private void grow() {
+        double[] grown = new double[finish.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = finish[(head + i) & (finish.length - 1)];
+        }
+        finish = grown;
+        head = 0;
+    }
+
+    @Override
+    public double getMinDelay() {
+        return propagationDelay + TransportLayerPacket.HEADER_SIZE / bandwidth;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(finish, 0.0);
+        head = 0;
+        size = 0;
+        lastArrival = 0.0;
+        averageQueue = 0.0;
+        sinceLastDrop = 0;
+        drops = 0;
+    }
+
+    /**
+     * @return packets dropped by the queue since the last reset.
+     */
+    public long getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return the number of packets in the queue at the last arrival.
+     */
+    public int getQueueLength() {
+        return size;
+    }
+
+    /**
+     * @return the bandwidth-delay product in bytes for a round trip over this
+     * link and an identical one back, without queueing or jitter.
+     */
+    public double bandwidthDelayProduct() {
+        return bandwidth * 2 * propagationDelay;
+    }
+}
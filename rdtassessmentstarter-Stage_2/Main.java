@@ -1,13 +1,381 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.Reference;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 public class Main {
 
-    public static void main(String[] args) {
-        NetworkSimulator sim = new NetworkSimulator(3, 0, 0.5, 10.0, false, 0);
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("sweep")) {
+            sweep();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("link")) {
+            linkSweep();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("duplex")) {
+            duplexSweep();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("file")) {
+            fileTransfer(Paths.get(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1400);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("udp")) {
+            udp(args.length > 1 ? Integer.parseInt(args[1]) : 100_000, args.length > 2 ? Double.parseDouble(args[2]) : 0.0);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("soak")) {
+            soak(args.length > 1 ? Integer.parseInt(args[1]) : 10_000, args.length > 2 ? Double.parseDouble(args[2]) : 10.0);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("impair")) {
+            impairments();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("flows")) {
+            flows(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+            return;
+        }
+
+        // java Main <seed> replays the run that printed that seed
+        NetworkSimulator sim = (args.length > 0)
+                ? new NetworkSimulator(3, 0, 0.5, 10.0, false, 0, Long.parseLong(args[0]))
+                : new NetworkSimulator(3, 0, 0.5, 10.0, false, 0);
+        System.out.println("Simulation seed: " + sim.getSeed());
+
+        // java Main <seed> <file> writes a binary trace instead, read it with java TraceDecoder <file>
+        if (args.length > 1) {
+            sim.setTracer(Tracer.toFile(Paths.get(args[1]), Tracer.INFO));
+        }
 
         sim.setSender(new TransportLayerSender("Sender", sim));
 
         sim.setReceiver(new TransportLayerReceiver("Receiver", sim));
 
         sim.runSimulation();
+        sim.getTracer().close();
+    }
+
+    /*
+     * Sweeps protocol, loss, corruption, lambda and window size on all cores and prints the results as a table.
+     */
+    private static void sweep() {
+        ParameterSweep sweep = new ParameterSweep();
+        sweep.setNumMessages(1000);
+        sweep.setLossProbs(0.0, 0.1, 0.2);
+        sweep.setCorruptProbs(0.0, 0.1, 0.2);
+        sweep.setLambdas(1.0, 10.0);
+        sweep.setWindowSizes(2, 8, 32);
+        sweep.setSeed(1);
+        sweep.setProtocols(ParameterSweep.Protocol.GO_BACK_N, ParameterSweep.Protocol.SELECTIVE_REPEAT,
+                ParameterSweep.Protocol.GO_BACK_N_AIMD, ParameterSweep.Protocol.GO_BACK_N_NO_FAST_RETRANSMIT,
+                ParameterSweep.Protocol.GO_BACK_N_DELAYED_ACK,
+                ParameterSweep.Protocol.GO_BACK_N.withFixedTimeout(RttEstimator.DEFAULT_INITIAL_RTO),
+                ParameterSweep.Protocol.SELECTIVE_REPEAT.withFixedTimeout(RttEstimator.DEFAULT_INITIAL_RTO));
+
+        System.out.print(ParameterSweep.table(sweep.run(Runtime.getRuntime().availableProcessors())));
+    }
+
+    /*
+     * Saturates a bottleneck link of 100 bytes per time unit with 10 time units of propagation delay each way and a
+     * 16 packet drop tail queue, sweeping the window size through the bandwidth-delay product (about 64 packets).
+     */
+    private static void linkSweep() {
+        ParameterSweep sweep = new ParameterSweep();
+        sweep.setNumMessages(5000);
+        sweep.setLambdas(0.1);
+        sweep.setWindowSizes(1, 4, 16, 32, 64, 80, 128);
+        sweep.setSeed(1);
+        sweep.setChannels(() -> new Link(100.0, 10.0, 0.5, 16));
+        sweep.setProtocols(ParameterSweep.Protocol.GO_BACK_N, ParameterSweep.Protocol.SELECTIVE_REPEAT,
+                ParameterSweep.Protocol.GO_BACK_N_AIMD);
+
+        System.out.print(ParameterSweep.table(sweep.run(Runtime.getRuntime().availableProcessors())));
+    }
+
+    /*
+     * Messages arrive at both ends: the half-duplex GBN pair throws away what arrives at the receiver, full-duplex
+     * GBN carries it and either piggybacks its ACKs on the reverse data or sends every ACK on its own. Compare the
+     * packets column against delivered.
+     */
+    private static void duplexSweep() {
+        ParameterSweep sweep = new ParameterSweep();
+        sweep.setNumMessages(5000);
+        sweep.setBidirectional(true);
+        sweep.setLossProbs(0.0, 0.1);
+        sweep.setLambdas(10.0, 1.0, 0.2);
+        sweep.setWindowSizes(8);
+        sweep.setSeed(1);
+        sweep.setProtocols(ParameterSweep.Protocol.GO_BACK_N, ParameterSweep.Protocol.GO_BACK_N_DUPLEX_NO_PIGGYBACK,
+                ParameterSweep.Protocol.GO_BACK_N_DUPLEX);
+
+        System.out.print(ParameterSweep.table(sweep.run(Runtime.getRuntime().availableProcessors())));
+    }
+
+    /*
+     * java Main file <path> [mss] sends a file over a fast link with Go-Back-N, a window of 64 packets and delayed
+     * ACKs, and checks the receiver got it.  The sender is always backlogged: arrivals come almost at once and wait
+     * in a send buffer of 1024 messages.
+     */
+    private static void fileTransfer(Path path, int mss) throws IOException {
+        try (FileWorkload workload = new FileWorkload(path, mss)) {
+            NetworkSimulator sim = new NetworkSimulator(1, 0.0, 0.0, 1e-9, false, 0, 1);
+            sim.setTracer(Tracer.off());
+            sim.setWorkload(workload);
+            sim.setSendBuffer(1024);
+            sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(1e6, 10.0, 0.0, 256));
+            sim.setChannel(NetworkSimulator.TO_SENDER, new Link(1e6, 10.0, 0.0, 256));
+            TransportLayerSender sender = new TransportLayerSender("Sender", sim);
+            sender.setWindowSize(64);
+            TransportLayerReceiver receiver = new TransportLayerReceiver("Receiver", sim);
+            receiver.setDelayedAck(2, 5.0);
+            sim.setSender(sender);
+            sim.setReceiver(receiver);
+            long start = System.nanoTime();
+            sim.runSimulation();
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.format("%d bytes in %d messages of at most %d bytes%n", workload.getSize(),
+                    workload.getNumMessages(), mss);
+            System.out.format("simulated %.1f time units, %.1f bytes per unit; %.2f s wall clock, %.1f MB/s, %d events%n",
+                    sim.getTime(), workload.getBytesDelivered() / sim.getTime(), seconds,
+                    workload.getBytesDelivered() / seconds / 1e6, sim.getEventsProcessed());
+            System.out.println((workload.isVerified() ? "verified " : "MISMATCH ") + workload.getDigest());
+        }
+    }
+
+    /*
+     * java Main udp [messages] [lossProb] runs Go-Back-N and Selective Repeat with a window of 64 over UDP on the
+     * loopback interface, with lossProb for both loss and corruption, and prints real packet rates and CPU cost.
+     */
+    private static void udp(int messages, double lossProb) {
+        System.out.format("%-6s %10s %10s %8s %8s %8s %10s %10s %12s%n", "proto", "delivered", "packets", "lost",
+                "corrupt", "dropped", "wall ms", "packets/s", "cpu ns/pkt");
+        for (String protocol : new String[]{"GBN", "SR"}) {
+            UdpLoopback net = new UdpLoopback(messages, lossProb, lossProb, 1);
+            net.setSendBuffer(1024);
+            if (protocol.equals("GBN")) {
+                TransportLayerSender sender = new TransportLayerSender("Sender", net);
+                sender.setWindowSize(64);
+                net.setSender(sender);
+                net.setReceiver(new TransportLayerReceiver("Receiver", net));
+            } else {
+                SelectiveRepeatSender sender = new SelectiveRepeatSender("Sender", net);
+                sender.setWindowSize(64);
+                SelectiveRepeatReceiver receiver = new SelectiveRepeatReceiver("Receiver", net);
+                receiver.setWindowSize(64);
+                net.setSender(sender);
+                net.setReceiver(receiver);
+            }
+            net.runSimulation();
+
+            long packets = net.getPacketsSent(NetworkSimulator.TO_RECEIVER) + net.getPacketsSent(NetworkSimulator.TO_SENDER);
+            double seconds = net.getWallClockNanos() / 1e9;
+            System.out.format("%-6s %10d %10d %8d %8d %8d %10.1f %10.0f %12.0f%n", protocol, net.getMessagesDelivered(),
+                    packets, net.getNumLost(), net.getNumCorrupt(), net.getNumDropped(), seconds * 1e3,
+                    packets / seconds, (double) net.getCpuNanos() / packets);
+        }
+    }
+
+    /*
+     * java Main impair runs Go-Back-N and Selective Repeat (window 16) through each impairment model in both
+     * directions: independent loss and Gilbert-Elliott loss at the same 2% mean, the latter in bursts of 5 packets,
+     * then 5% of packets reordered by 10 time units and 5% duplicated.
+     */
+    private static void impairments() {
+        String[] scenarios = {"none", "bernoulli 2%", "gilbert-elliott 2%", "reorder 5%", "duplicate 5%"};
+        System.out.format("%-20s %-5s %10s %10s %8s %10s %10s %10s %12s%n", "impairment", "proto", "delivered",
+                "packets", "lost", "reordered", "duplicated", "resent", "time");
+        for (String scenario : scenarios) {
+            for (String protocol : new String[]{"GBN", "SR"}) {
+                NetworkSimulator sim = new NetworkSimulator(20_000, 0.0, 0.0, 10.0, false, 0, 1);
+                sim.setTracer(Tracer.off());
+                for (int direction : new int[]{NetworkSimulator.TO_RECEIVER, NetworkSimulator.TO_SENDER}) {
+                    switch (scenario) {
+                        case "bernoulli 2%":
+                            sim.setImpairments(direction, new BernoulliLoss(0.02));
+                            break;
+                        case "gilbert-elliott 2%":
+                            sim.setImpairments(direction, new GilbertElliott(0.02 * 0.2 / 0.98, 0.2));
+                            break;
+                        case "reorder 5%":
+                            sim.setImpairments(direction, new Reordering(0.05, 10.0));
+                            break;
+                        case "duplicate 5%":
+                            sim.setImpairments(direction, new Duplication(0.05));
+                            break;
+                        default:
+                    }
+                }
+                if (protocol.equals("GBN")) {
+                    TransportLayerSender sender = new TransportLayerSender("Sender", sim);
+                    sender.setWindowSize(16);
+                    sim.setSender(sender);
+                    sim.setReceiver(new TransportLayerReceiver("Receiver", sim));
+                } else {
+                    SelectiveRepeatSender sender = new SelectiveRepeatSender("Sender", sim);
+                    sender.setWindowSize(16);
+                    SelectiveRepeatReceiver receiver = new SelectiveRepeatReceiver("Receiver", sim);
+                    receiver.setWindowSize(16);
+                    sim.setSender(sender);
+                    sim.setReceiver(receiver);
+                }
+                sim.runSimulation();
+
+                System.out.format("%-20s %-5s %10d %10d %8d %10d %10d %10d %12.1f%n", scenario, protocol,
+                        sim.getMessagesDelivered(), sim.getPacketsSent(NetworkSimulator.TO_RECEIVER)
+                                + sim.getPacketsSent(NetworkSimulator.TO_SENDER), sim.getNumLost(),
+                        sim.getNumReordered(), sim.getNumDuplicated(), sim.getMetrics().getRetransmissions(),
+                        sim.getTime());
+            }
+        }
+    }
+
+    /*
+     * java Main soak [connections] [seconds] runs that many Go-Back-N connections, 20 messages each with 1% loss on
+     * a shared fast link, three times: on the event heap, on the timing wheel, and on the wheel paced against the
+     * wall clock to take about seconds. It prints the CPU time each connection costs, its memory (see
+     * soakFootprint), how far the paced run fell behind the wall clock and whether all three got the same result.
+     */
+    private static void soak(int connections, double seconds) {
+        int messages = 20 * connections;
+        double lambda = 0.05;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.format("%-9s %10s %10s %10s %10s %12s %10s %12s %12s %12s %10s%n", "mode", "delivered", "events",
+                "wall ms", "cpu ms", "cpu us/conn", "ns/event", "setup B/conn", "live B/conn", "max lag ms",
+                "identical");
+        String[] modes = {"heap", "wheel", "realtime"};
+        // measured first, while no other simulator is alive, after a run of one connection has loaded the classes
+        long[][] footprints = new long[modes.length][];
+        for (int i = 0; i < modes.length; i++) {
+            soakFootprint(1, !modes[i].equals("heap"));
+            footprints[i] = soakFootprint(connections, !modes[i].equals("heap"));
+        }
+        String expected = null;
+        for (int i = 0; i < modes.length; i++) {
+            String mode = modes[i];
+            long[] footprint = footprints[i];
+            NetworkSimulator sim = soakSimulator(connections, !mode.equals("heap"), null);
+            if (mode.equals("realtime")) {
+                sim.setRealTime(seconds * 1e9 / (messages * lambda));
+            }
+
+            long cpuBefore = threads.getCurrentThreadCpuTime();
+            sim.runSimulation();
+            long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+
+            String outcome = sim.getTime() + " " + sim.getEventsProcessed() + " " + sim.getMessagesDelivered() + " "
+                    + sim.getMetrics().getRetransmissions();
+            if (expected == null) {
+                expected = outcome;
+            }
+            System.out.format("%-9s %10d %10d %10.1f %10.1f %12.1f %10.0f %12d %12d %12.2f %10s%n", mode,
+                    sim.getMessagesDelivered(), sim.getEventsProcessed(), sim.getWallClockNanos() / 1e6, cpu / 1e6,
+                    cpu / 1e3 / connections, (double) cpu / sim.getEventsProcessed(), footprint[0], footprint[1],
+                    sim.getMaxLagNanos() / 1e6, outcome.equals(expected) ? "yes" : "NO");
+        }
+    }
+
+    /*
+     * The soak simulator, on the timing wheel if wheel. midRun, if not null, runs once when half the messages have
+     * been handed to the senders.
+     */
+    private static NetworkSimulator soakSimulator(int connections, boolean wheel, Runnable midRun) {
+        int messages = 20 * connections;
+        NetworkSimulator sim = new NetworkSimulator(messages, 0.01, 0.0, 0.05, false, 0, 1);
+        sim.setTracer(Tracer.off());
+        sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(10_000.0, 1.0, 2.0, 4096));
+        sim.setChannel(NetworkSimulator.TO_SENDER, new Link(10_000.0, 1.0, 2.0, 4096));
+        int[] sent = new int[1];
+        for (int i = 0; i < connections; i++) {
+            TransportLayerSender sender = midRun == null ? new TransportLayerSender("Sender" + i, sim)
+                    : new TransportLayerSender("Sender" + i, sim) {
+                        @Override
+                        public void rdt_send(byte[] data) {
+                            if (++sent[0] == messages / 2) {
+                                midRun.run();
+                            }
+                            super.rdt_send(data);
+                        }
+                    };
+            sender.setWindowSize(8);
+            sim.addFlow(sender, new TransportLayerReceiver("Receiver" + i, sim));
+        }
+        if (wheel) {
+            sim.setTimingWheel(1.0);
+        }
+        return sim;
+    }
+
+    /*
+     * The memory of a soak connection in bytes, from an unpaced run of its own: { the bytes allocated to set up the
+     * simulator and its connections, from the thread's allocation counter as in Benchmarks.flowFootprint, the heap
+     * retained half way through the run, with timers and packets in flight, over that retained before the set up }.
+     */
+    private static long[] soakFootprint(int connections, boolean wheel) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long heapBefore = retainedHeap();
+        long[] live = new long[1];
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        NetworkSimulator sim = soakSimulator(connections, wheel, () -> live[0] = retainedHeap());
+        long setup = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sim.runSimulation();
+        Reference.reachabilityFence(sim);
+        return new long[]{setup / connections, (live[0] - heapBefore) / connections};
+    }
+
+    /*
+     * The heap held by live objects: what the heap pools kept after the last of 4 full collections. The serial
+     * collector leaves some garbage in place and only compacts all of it every 4th time (MarkSweepAlwaysCompactCount).
+     */
+    private static long retainedHeap() {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /*
+     * Go-Back-N flows with AIMD congestion control compete for a saturated bottleneck of 1000 bytes per time unit
+     * with a 256 packet drop tail queue. Prints the run summary and the spread of the per flow goodput.
+     */
+    private static void flows(int numFlows) {
+        NetworkSimulator sim = new NetworkSimulator(200 * numFlows, 0.0, 0.0, 0.01, false, 0, 1);
+        sim.setTracer(Tracer.off());
+        sim.setChannel(NetworkSimulator.TO_RECEIVER, new Link(1000.0, 10.0, 1.0, 256));
+        sim.setChannel(NetworkSimulator.TO_SENDER, new Link(1000.0, 10.0, 1.0, 256));
+        for (int i = 0; i < numFlows; i++) {
+            TransportLayerSender sender = new TransportLayerSender("Sender" + i, sim);
+            sender.setCongestionControl(true);
+            sender.setWindowSize(64);
+            sim.addFlow(sender, new TransportLayerReceiver("Receiver" + i, sim));
+        }
+        sim.runSimulation();
+
+        double[] goodput = new double[numFlows];
+        for (int i = 0; i < numFlows; i++) {
+            goodput[i] = sim.getMetrics().getFlowStats(i).getGoodput();
+        }
+        Arrays.sort(goodput);
+        System.out.println(sim.getMetrics().toJson());
+        System.out.format("per flow goodput: min %.5f median %.5f max %.5f%n",
+                goodput[0], goodput[numFlows / 2], goodput[numFlows - 1]);
     }
 
 }
@@ -0,0 +1,298 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counters and latency statistics of a simulation run.  Every
+ * NetworkSimulator owns one (getMetrics()); it is reset when the run starts
+ * and can be queried at any point during the run, e.g. from a transport
+ * layer, or afterwards.  toJson() gives a machine readable summary, which
+ * runSimulation also traces at the end of the run.
+ *
+ * The latency of a message is the simulation time from its rdt_send to its
+ * sendToApplicationLayer.  Reliable transport delivers messages in the
+ * order they were sent, so the send times of the messages in transit are
+ * kept in a FIFO per destination and matched to deliveries in order.  The
+ * FIFOs are growable rings and the histogram is a fixed array, so nothing is
+ * allocated per message.
+ *
+ * Per flow counters (getFlowStats) are kept in arrays indexed by endpoint id,
+ * and a destination's FIFO is only allocated when it first has a message in
+ * transit, so a flow that never sends costs a few dozen bytes here.
+ *
+ * Transport layers report what only they know by calling retransmission()
+ * and duplicate().
+ */
+public class Metrics {
+
+    private final NetworkSimulator simulator;
+
+    private long messagesSent;
+    private long retransmissions;
+    private long duplicates;
+    private long timerFires;
+    private long undetectedCorruptions;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // send times of undelivered messages per destination endpoint, a ring of capacity pending[d].length or null
+    private double[][] pending = new double[2][];
+    private int[] pendingHead = new int[2];
+    private int[] pendingSize = new int[2];
+
+    // per endpoint: messages delivered to it, their total latency, packets it sent
+    private long[] delivered = new long[2];
+    private double[] latencySum = new double[2];
+    private long[] packetsSent = new long[2];
+
+    Metrics(NetworkSimulator simulator) {
+        this.simulator = simulator;
+    }
+
+    void reset() {
+        messagesSent = 0;
+        retransmissions = 0;
+        duplicates = 0;
+        timerFires = 0;
+        undetectedCorruptions = 0;
+        latency.reset();
+        Arrays.fill(pendingHead, 0);
+        Arrays.fill(pendingSize, 0);
+        Arrays.fill(delivered, 0);
+        Arrays.fill(latencySum, 0.0);
+        Arrays.fill(packetsSent, 0);
+    }
+
+    /**
+     * Make room for the counters of endpoints 0..count-1.
+     */
+    void ensureEndpoints(int count) {
+        if (count > pendingSize.length) {
+            int capacity = Math.max(count, pendingSize.length * 2);
+            pending = Arrays.copyOf(pending, capacity);
+            pendingHead = Arrays.copyOf(pendingHead, capacity);
+            pendingSize = Arrays.copyOf(pendingSize, capacity);
+            delivered = Arrays.copyOf(delivered, capacity);
+            latencySum = Arrays.copyOf(latencySum, capacity);
+            packetsSent = Arrays.copyOf(packetsSent, capacity);
+        }
+    }
+
+    /**
+     * A message for destination was handed to its transport layer at time.
+     */
+    void messageSent(int destination, double time) {
+        messagesSent++;
+        double[] ring = pending[destination];
+        int size = pendingSize[destination];
+        if (ring == null) {
+            pending[destination] = ring = new double[destination < 2 ? 64 : 4];
+        } else if (size == ring.length) {
+            // unroll into a ring twice the size
+            double[] grown = new double[size * 2];
+            int head = pendingHead[destination];
+            System.arraycopy(ring, head, grown, 0, size - head);
+            System.arraycopy(ring, 0, grown, size - head, head);
+            pending[destination] = ring = grown;
+            pendingHead[destination] = 0;
+        }
+        ring[(pendingHead[destination] + size) & (ring.length - 1)] = time;
+        pendingSize[destination] = size + 1;
+    }
+
+    /**
+     * The oldest message in transit to destination was delivered at time.
+     */
+    void messageDelivered(int destination, double time) {
+        if (pendingSize[destination] == 0) {
+            return; // delivered more often than sent, nothing to match it to
+        }
+        double[] ring = pending[destination];
+        int head = pendingHead[destination];
+        latency.record(time - ring[head]);
+        delivered[destination]++;
+        latencySum[destination] += time - ring[head];
+        pendingHead[destination] = (head + 1) & (ring.length - 1);
+        pendingSize[destination]--;
+    }
+
+    /**
+     * Add the counts of other, which counted a disjoint part of the same run
+     * (a worker of a parallel run), to this.
+     */
+    void add(Metrics other) {
+        ensureEndpoints(other.pendingSize.length);
+        messagesSent += other.messagesSent;
+        retransmissions += other.retransmissions;
+        duplicates += other.duplicates;
+        timerFires += other.timerFires;
+        undetectedCorruptions += other.undetectedCorruptions;
+        latency.add(other.latency);
+        for (int i = 0; i < other.pendingSize.length; i++) {
+            pendingSize[i] += other.pendingSize[i];
+            delivered[i] += other.delivered[i];
+            latencySum[i] += other.latencySum[i];
+            packetsSent[i] += other.packetsSent[i];
+        }
+    }
+
+    /**
+     * Endpoint source handed a packet to the network.
+     */
+    void packetSent(int source) {
+        packetsSent[source]++;
+    }
+
+    void timerFired() {
+        timerFires++;
+    }
+
+    /**
+     * Called by a transport layer for every packet it sends again.
+     */
+    public void retransmission() {
+        retransmissions++;
+    }
+
+    /**
+     * Called by a transport layer for every packet it receives that it had already received.
+     */
+    public void duplicate() {
+        duplicates++;
+    }
+
+    /**
+     * Called by TransportLayer.isCorrupt for a corrupted packet that passed the integrity check.
+     */
+    void undetectedCorruption() {
+        undetectedCorruptions++;
+    }
+
+    /**
+     * @return messages handed to the transport layers so far.
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getMessagesDelivered() {
+        return simulator.getMessagesDelivered();
+    }
+
+    /**
+     * @return messages handed over but not delivered yet.
+     */
+    public long getMessagesInTransit() {
+        long inTransit = 0;
+        for (int size : pendingSize) {
+            inTransit += size;
+        }
+        return inTransit;
+    }
+
+    /**
+     * @return the counters of one flow (NetworkSimulator.addFlow) so far.
+     */
+    public FlowStats getFlowStats(int flow) {
+        int sender = 2 * flow;
+        int receiver = sender + 1;
+        long flowDelivered = delivered[sender] + delivered[receiver];
+        double time = simulator.getTime();
+        return new FlowStats(flow, flowDelivered, pendingSize[sender] + pendingSize[receiver],
+                flowDelivered == 0 ? Double.NaN : (latencySum[sender] + latencySum[receiver]) / flowDelivered,
+                time == 0 ? 0.0 : flowDelivered / time, packetsSent[sender], packetsSent[receiver]);
+    }
+
+    /**
+     * @return Jain's fairness index of the messages delivered per flow, from
+     * 1/flows when one flow got everything to 1 when all got the same.
+     */
+    public double getFairness() {
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        int flows = simulator.getNumFlows();
+        for (int flow = 0; flow < flows; flow++) {
+            double x = delivered[2 * flow] + delivered[2 * flow + 1];
+            sum += x;
+            sumOfSquares += x * x;
+        }
+        return sumOfSquares == 0 ? Double.NaN : sum * sum / (flows * sumOfSquares);
+    }
+
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getTimerFires() {
+        return timerFires;
+    }
+
+    /**
+     * @return corrupted packets that a transport layer accepted as intact.
+     */
+    public long getUndetectedCorruptions() {
+        return undetectedCorruptions;
+    }
+
+    /**
+     * @return messages delivered per unit of simulation time.
+     */
+    public double getGoodput() {
+        double time = simulator.getTime();
+        return time == 0 ? 0.0 : simulator.getMessagesDelivered() / time;
+    }
+
+    /**
+     * @return the end to end latency of the messages delivered so far.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return a JSON object with the counters, goodput, latency percentiles
+     * and wall clock event rate of the run so far.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append('{');
+        field(sb, "seed", simulator.getSeed()).append(',');
+        field(sb, "simTime", simulator.getTime()).append(',');
+        field(sb, "messagesSent", messagesSent).append(',');
+        field(sb, "messagesDelivered", simulator.getMessagesDelivered()).append(',');
+        field(sb, "retransmissions", retransmissions).append(',');
+        field(sb, "duplicates", duplicates).append(',');
+        field(sb, "timerFires", timerFires).append(',');
+        field(sb, "lost", simulator.getNumLost()).append(',');
+        field(sb, "corrupt", simulator.getNumCorrupt()).append(',');
+        field(sb, "dropped", simulator.getNumDropped()).append(',');
+        field(sb, "undetectedCorrupt", undetectedCorruptions).append(',');
+        field(sb, "goodput", getGoodput()).append(',');
+        field(sb, "flows", simulator.getNumFlows()).append(',');
+        field(sb, "fairness", getFairness()).append(',');
+        sb.append("\"latency\":{");
+        field(sb, "count", latency.getCount()).append(',');
+        field(sb, "mean", latency.getMean()).append(',');
+        field(sb, "min", latency.getMin()).append(',');
+        field(sb, "p50", latency.percentile(0.5)).append(',');
+        field(sb, "p99", latency.percentile(0.99)).append(',');
+        field(sb, "p999", latency.percentile(0.999)).append(',');
+        field(sb, "max", latency.getMax()).append("},");
+        field(sb, "events", simulator.getEventsProcessed()).append(',');
+        field(sb, "eventsPerSec", simulator.getEventsPerSecond()).append(',');
+        field(sb, "gcCycles", simulator.getGcCount());
+        return sb.append('}').toString();
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name, long value) {
+        return sb.append('"').append(name).append("\":").append(value);
+    }
+
+    private static StringBuilder field(StringBuilder sb, String name, double value) {
+        sb.append('"').append(name).append("\":");
+        // JSON has no NaN or infinity
+        return Double.isFinite(value) ? sb.append(String.format(Locale.ROOT, "%.6g", value)) : sb.append("null");
+    }
+}
@@ -1,9 +1,11 @@
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.text.NumberFormat;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.PriorityQueue;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Simulate a network with variable reliability.
@@ -11,20 +13,77 @@ import java.util.Random;
  */
 public class NetworkSimulator {
 
+    /**
+     * The tag passed to TransportLayer.timerInterrupt(int) for timers started
+     * with startTimer(TransportLayer, double).
+     */
+    public static final int DEFAULT_TIMER = -1;
+
+    /**
+     * Endpoint ids of the sender and receiver, see TransportLayer.getEndpointId().
+     * These are flow 0; flow f has the ids 2f and 2f + 1 (see addFlow), so
+     * the lowest bit of an endpoint id says which end of its flow it is.
+     */
+    public static final int SENDER = 0;
+    public static final int RECEIVER = 1;
+
+    /**
+     * Channel directions, see getChannelTail(int).  A direction is the end
+     * of the flow (SENDER or RECEIVER) the packets travel to, every flow
+     * shares the same two channels.
+     */
+    public static final int TO_RECEIVER = RECEIVER;
+    public static final int TO_SENDER = SENDER;
+
     private int numMessages;
     private double lossProb;
     private double corruptProb;
     private double lambda;
-    private int debugLevel;
-    public static final Random rng;
+    private Tracer tracer;
+    private final long seed;
+    private SplittableRandom arrivalRng;
+    private SplittableRandom lossRng;
+    private SplittableRandom corruptRng;
+    private SplittableRandom delayRng;
+    private SplittableRandom payloadRng;
+    private SplittableRandom impairmentRng;
     private TransportLayer sender;
     private TransportLayer receiver;
-    private PriorityQueue<Event> eventQueue;
+    private TransportLayer[] endpoints;    // by endpoint id, 2 per flow
+    private int numFlows;
+    private EventQueue eventQueue;
+    private long[] defaultTimers;
+    private double[] channelTail;
+    double arrivalTail;
+    private Channel[] channels;
     double simulationTime;
     boolean bidirectional;
     int numLost;
     int numCorrupt;
+    int numDropped;
+    int numDuplicated;
+    int numReordered;
+    private Impairment[][] impairments;  // by direction
     int messagesSent;
+    int messagesDelivered;
+    long[] packetsSent;     // by direction, including lost packets
+    long[] payloadBytesSent;
+    long eventsProcessed;
+    private Metrics metrics;
+    private Integrity integrity = Integrity.SUM;
+    private Workload workload;      // null for 20 random letters per message
+    int sendBuffer = Integer.MAX_VALUE;
+    private int heldArrivals;       // layer 5 arrivals waiting for room in the send buffer
+    private FateRecorder fateRecorder;
+    private FateReplay fateReplay;
+    private final PacketFate fate = new PacketFate();  // of the packet being transmitted
+    private double nanosPerUnit;    // wall clock pacing of runSimulation(), 0 to run flat out
+    private long maxLagNanos;       // how late the paced run handled events
+    private long totalLagNanos;
+    long startNanos;            // wall clock start of the run in progress, 0 when none is
+    private ParallelRun parallel; // the parallel run in progress, null when running sequentially
+    long wallClockNanos;
+    long gcCount;
 
     /**
      * Create a new instance of the NetworkSimulator class.  This instance will
@@ -36,7 +95,8 @@ public class NetworkSimulator {
      * and receiver) if bidirectional is true.
      *
      * Additional debugging messages will be produced if debugLevel is set > 0,
-     * with increasing verbosity up to 3.
+     * with increasing verbosity up to 3.  Messages are printed by a console
+     * Tracer at level Tracer.INFO + debugLevel unless setTracer(...) is used.
      *
      * @param numMessages the number of messages to send during the simulation
      * @param lossProb the probability of packet loss at the network layer
@@ -51,23 +111,66 @@ public class NetworkSimulator {
      * @param debugLevel verbosity of output from the simulator.
      */
     public NetworkSimulator(int numMessages, double lossProb, double corruptProb, double lambda, boolean bidirectional, int debugLevel) {
+        this(numMessages, lossProb, corruptProb, lambda, bidirectional, debugLevel, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Create a new instance of the NetworkSimulator class whose random
+     * numbers come from its own generator seeded with seed, so that the run
+     * is independent of other instances and can be repeated bit for bit by
+     * another instance created with the same arguments (see getSeed()).
+     *
+     * Arrivals, loss, corruption, delay and payload each draw from their own
+     * stream split from the seed, so changing how one of them uses random
+     * numbers does not shift the others.
+     *
+     * @param seed the seed of this instance's random number generator.
+     * @see #NetworkSimulator(int, double, double, double, boolean, int)
+     */
+    public NetworkSimulator(int numMessages, double lossProb, double corruptProb, double lambda, boolean bidirectional, int debugLevel, long seed) {
+        this.seed = seed;
+        initRandomStreams();
         this.numMessages = numMessages;
         this.lossProb = lossProb;
         this.corruptProb = corruptProb;
         this.lambda = lambda;
         this.bidirectional = bidirectional;
-        this.debugLevel = debugLevel;
+        this.tracer = Tracer.console(Tracer.INFO + debugLevel);
 
-        this.eventQueue = new PriorityQueue<Event>();
+        this.eventQueue = new EventQueue();
+        this.endpoints = new TransportLayer[2];
+        this.defaultTimers = new long[2];
+        this.channelTail = new double[2];
+        this.channels = new Channel[] {new FifoChannel(), new FifoChannel()};
+        this.impairments = new Impairment[][] {new Impairment[0], new Impairment[0]};
+        this.packetsSent = new long[2];
+        this.payloadBytesSent = new long[2];
+        this.metrics = new Metrics(this);
 
         // initialize event counters
         numLost = 0;
         numCorrupt = 0;
+        numDropped = 0;
+        numDuplicated = 0;
+        numReordered = 0;
+    }
+
+    /**
+     * Replace the tracer that receives the messages of this simulation and of
+     * its transport layers.
+     * @param tracer e.g. Tracer.off() or Tracer.toFile(...).
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
     }
 
     /**
      * Attach a TransportLayer instance to this simulation as the designated
-     * "sender".  The sender designation is only relevant if bidirectional is
+     * "sender" of flow 0.  The sender designation is only relevant if bidirectional is
      * false.  In which case all layer 5 events will occur at the object passed
      * as an argument to this method.
      *
@@ -75,99 +178,528 @@ public class NetworkSimulator {
      */
     public void setSender(TransportLayer sender) {
         this.sender = sender;
+        attach(SENDER, sender);
     }
 
     /**
      * Attach a TransportLayer instance to this simulation as the designated
-     * "receiver".  This designation is only relevant if the bidirectional
+     * "receiver" of flow 0.  This designation is only relevant if the bidirectional
      * option was false at instantiation.  In that case the "receiver" object
      * will only encounter layer 3 events (data from the network).
      * @param receiver
      */
     public void setReceiver(TransportLayer receiver) {
         this.receiver = receiver;
+        attach(RECEIVER, receiver);
     }
 
     /**
-     * Called once per instance to begin the simulation process.
+     * Add a connection between a sender and a receiver.  All flows run in
+     * the same event loop and share the network: both channels, the loss
+     * and corruption probabilities, and the layer 5 arrivals, each of which
+     * goes to a flow chosen uniformly at random.  numMessages is the total
+     * over all flows.  The first flow added is flow 0, the same as
+     * setSender and setReceiver.
+     * @return the flow id, which the simulator puts in every packet of the
+     * flow (TransportLayerPacket.getFlowId()) and Metrics.getFlowStats takes.
      */
-    public void runSimulation() {
+    public int addFlow(TransportLayer sender, TransportLayer receiver) {
+        int flow = (this.sender == null && this.receiver == null) ? 0 : numFlows;
+        if (flow == 0) {
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+        attach(2 * flow, sender);
+        attach(2 * flow + 1, receiver);
+        return flow;
+    }
 
-        if (sender == null || receiver == null) {
-            throw new IllegalStateException("sim run without sender or receiver.");
+    private void attach(int id, TransportLayer layer) {
+        if (id >= endpoints.length) {
+            int capacity = Math.max(id + 1, endpoints.length * 2);
+            endpoints = Arrays.copyOf(endpoints, capacity);
+            defaultTimers = Arrays.copyOf(defaultTimers, capacity);
         }
+        layer.setEndpointId(id);
+        endpoints[id] = layer;
+        numFlows = Math.max(numFlows, id / 2 + 1);
+        metrics.ensureEndpoints(2 * numFlows);
+    }
 
-        messagesSent = 1;
-        simulationTime = 0.0;
+    /**
+     * @return the number of flows, 1 for a simulation with just a sender and a receiver.
+     */
+    public int getNumFlows() {
+        return numFlows;
+    }
+
+    /**
+     * @return the transport layer with the given endpoint id.
+     */
+    public TransportLayer getEndpoint(int id) {
+        return endpoints[id];
+    }
 
-        sender.init();
-        receiver.init();
+    /**
+     * @return the flow an endpoint id belongs to.
+     */
+    public static int flowOf(int endpointId) {
+        return endpointId >> 1;
+    }
+
+    /**
+     * Take the messages from a workload instead of sending 20 random letters
+     * each, and hand what the receiver delivers to it.  numMessages becomes
+     * the workload's number of messages, and senders that label their
+     * packets for testing (Labelling) stop doing so.  A workload needs a
+     * single flow, bidirectional false and runSimulation().
+     */
+    public void setWorkload(Workload workload) {
+        this.workload = workload;
+        if (workload != null) {
+            numMessages = workload.getNumMessages();
+        }
+    }
+
+    public Workload getWorkload() {
+        return workload;
+    }
+
+    /**
+     * @return the number of messages a run sends.
+     */
+    public int getNumMessages() {
+        return numMessages;
+    }
+
+    /**
+     * Let at most messages messages be sent but not yet delivered, like a
+     * socket's send buffer: a layer 5 arrival that finds the buffer full
+     * waits, without its data, until a delivery makes room.  With a
+     * Workload this keeps bulk transfers off the heap.  Unlimited by
+     * default; a limit needs a single flow, bidirectional false and
+     * runSimulation().
+     */
+    public void setSendBuffer(int messages) {
+        if (messages < 1) {
+            throw new IllegalArgumentException("the send buffer must hold at least one message");
+        }
+        sendBuffer = messages;
+    }
+
+    /**
+     * Keep the events in a hierarchical timing wheel in front of the event
+     * heap (see EventQueue), with slots tick units of simulation time wide,
+     * or go back to the plain heap with 0.  The result of a run is the same
+     * either way; the wheel makes starting and cancelling timers O(1)
+     * whatever the number of connections, so it pays with thousands of flows
+     * each holding timers.  A tick of about the typical delay between events
+     * of one flow works well.  Only runSimulation() uses it, call it between
+     * runs.
+     */
+    public void setTimingWheel(double tick) {
+        eventQueue = new EventQueue(64, tick);
+    }
+
+    /**
+     * Emulate live behaviour: runSimulation() handles each event no earlier
+     * than nanosPerUnit nanoseconds of wall clock time per unit of
+     * simulation time after the start of the run, sleeping in between, so a
+     * run with 1e6 takes a millisecond per time unit.  Events the thread
+     * cannot keep up with are handled late rather than skipped, in the same
+     * order, so a paced run gets the same result as an unpaced one and
+     * getMaxLagNanos() tells how far behind the wall clock it fell.  0 (the
+     * default) runs as fast as possible.  Not supported by
+     * runSimulation(threads).
+     */
+    public void setRealTime(double nanosPerUnit) {
+        if (nanosPerUnit < 0) {
+            throw new IllegalArgumentException("nanosPerUnit must not be negative");
+        }
+        this.nanosPerUnit = nanosPerUnit;
+    }
+
+    /**
+     * @return the latest an event of the last paced run was handled after
+     * its wall clock time, in nanoseconds.
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    /**
+     * @return the mean of how late the events of the last paced run were
+     * handled, in nanoseconds.
+     */
+    public double getMeanLagNanos() {
+        return eventsProcessed == 0 ? 0.0 : (double) totalLagNanos / eventsProcessed;
+    }
+
+    /**
+     * Record the fate of every packet transmitted from now on: lost,
+     * corrupted, dropped or delivered after a delay.  Null stops recording.
+     */
+    public void setFateRecorder(FateRecorder fateRecorder) {
+        this.fateRecorder = fateRecorder;
+    }
+
+    /**
+     * Give the packets of every run the fates recorded in a trace instead of
+     * drawing them: loss, corruption and the channels are skipped, see
+     * FateReplay.  The loss and corruption probabilities and the channels
+     * only apply to packets beyond the end of the trace.  Null goes back to
+     * the live network.
+     */
+    public void setFateReplay(FateReplay fateReplay) {
+        this.fateReplay = fateReplay;
+    }
+
+    /**
+     * Called once per instance to begin the simulation process.
+     */
+    public void runSimulation() {
+
+        startRun();
+        for (int id = 0; id < 2 * numFlows; id++) {
+            endpoints[id].init();
+        }
 
         //add event to event queue
         generateNextArrival();
 
-        Event evt;
-        while (eventQueue.size() > 0) {
+        long gcBefore = collectionCount();
+        startNanos = System.nanoTime();
+
+        while (!eventQueue.isEmpty()) {
 
-            if (debugLevel > 2) {
-                printEventQueue();
+            if (tracer.isEnabled(Tracer.EVENTS)) {
+                traceEventQueue();
+            }
+            if (nanosPerUnit > 0) {
+                pace(eventQueue.peekTime());
             }
 
-            evt = eventQueue.poll();
-            simulationTime = evt.getEvTime();        /* update time to next event time */
+            eventQueue.poll();
+            eventsProcessed++;
+            simulationTime = eventQueue.polledTime();        /* update time to next event time */
+            TransportLayer entity = endpoints[eventQueue.polledEndpoint()];
 
-            if (evt.getEvType() == EventType.FROM_LAYER5) {
-                if (messagesSent < numMessages) {
-                    generateNextArrival();   /* set up future arrival */
-                }
-                byte[] msg = randomLetters();
-                messagesSent++;
-                if (evt.getEvEntity().equals(sender)) {
-                    sender.rdt_send(msg);
-                } else {
-                    receiver.rdt_send(msg);
-                }
-            } else if (evt.getEvType() == EventType.FROM_LAYER3) {
-                if (evt.getEvEntity().equals(sender)) {  /* deliver packet by calling */
-                    sender.rdt_receive(evt.getPkt());  /* appropriate entity */
-                } else {
-                    receiver.rdt_receive(evt.getPkt());
-                }
-            } else if (evt.getEvType() == EventType.TIMER_INTERRUPT) {
-                if (evt.getEvEntity().equals(sender)) {
-                    sender.timerInterrupt();
-                } else {
-                    receiver.timerInterrupt();
+            switch (eventQueue.polledType()) {
+                case EventQueue.FROM_LAYER5:
+                    // arrivals released from the send buffer (tag 1) don't set up another one
+                    if (eventQueue.polledTag() == 0 && messagesSent + heldArrivals < numMessages) {
+                        generateNextArrival();   /* set up future arrival */
+                    }
+                    if (messagesSent - 1 - messagesDelivered >= sendBuffer) {
+                        heldArrivals++;
+                        break;
+                    }
+                    byte[] msg = (workload != null) ? workload.next() : randomLetters();
+                    messagesSent++;
+                    metrics.messageSent(eventQueue.polledEndpoint() ^ 1, simulationTime);
+                    entity.rdt_send(msg);
+                    break;
+                case EventQueue.FROM_LAYER3:
+                    entity.rdt_receive(eventQueue.polledPacket());   /* deliver packet to its entity */
+                    break;
+                case EventQueue.TIMER_INTERRUPT:
+                    if (eventQueue.polledTag() == DEFAULT_TIMER) {
+                        defaultTimers[eventQueue.polledEndpoint()] = 0;
+                    }
+                    metrics.timerFired();
+                    entity.timerInterrupt(eventQueue.polledTag());
+                    break;
+                default:
+                    System.out.println("INTERNAL PANIC: unknown event type \n");
+                    System.exit(1);
+            }
+        }
+
+        finishRun(gcBefore);
+    }
+
+    /**
+     * private utility method: wait until the wall clock time of an event at
+     * time, and record how late it is.
+     */
+    private void pace(double time) {
+        long due = startNanos + (long) (time * nanosPerUnit);
+        long now = System.nanoTime();
+        while (now < due) {
+            LockSupport.parkNanos(due - now);
+            now = System.nanoTime();
+        }
+        maxLagNanos = Math.max(maxLagNanos, now - due);
+        totalLagNanos += now - due;
+    }
+
+    /**
+     * Run the simulation with the flows divided between threads worker
+     * threads, each with its own event queue, in contiguous blocks.  The
+     * workers advance in windows synchronised by a barrier (conservative
+     * synchronisation): a window starts at the earliest pending event and
+     * lasts for the lookahead, the smallest Channel.getMinDelay() of the two
+     * channels, so no packet sent in a window can arrive before the next one.
+     * Between windows the network is simulated on one thread: the packets
+     * sent in the window are lost, corrupted and put through the channels in
+     * time order, and the layer 5 arrivals of the next window are handed out,
+     * drawing the same random numbers in the same order as runSimulation().
+     *
+     * The result for a given seed is that of runSimulation() unless events of
+     * different flows fall at exactly the same time, which the random delays
+     * make practically impossible (ties between events of the same flow are
+     * broken the same way), except that the mean latency is summed per worker
+     * and may differ in the last bits.  Transport layers must only touch
+     * their own flow, and the run cannot be traced.  Wall clock time
+     * includes the barriers, so the speed-up depends on the number of events
+     * per window and on the number of cores.
+     *
+     * @param threads the number of worker threads, at most one per flow is used.
+     * @throws IllegalStateException if the tracer is enabled, a channel has
+     * no positive minimum delay, a workload or send buffer is set, or the
+     * run is paced (setRealTime).
+     */
+    public void runSimulation(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (tracer.isEnabled(Tracer.WARN)) {
+            throw new IllegalStateException("parallel runs cannot be traced, use Tracer.off().");
+        }
+        double lookahead = Math.min(channels[TO_RECEIVER].getMinDelay(), channels[TO_SENDER].getMinDelay());
+        if (!(lookahead > 0)) {
+            throw new IllegalStateException("parallel runs need channels with a positive minimum delay.");
+        }
+        if (workload != null || sendBuffer < Integer.MAX_VALUE) {
+            throw new IllegalStateException("a workload or send buffer needs runSimulation().");
+        }
+        if (nanosPerUnit > 0) {
+            throw new IllegalStateException("a paced run needs runSimulation().");
+        }
+
+        startRun();
+        long gcBefore = collectionCount();
+        startNanos = System.nanoTime();
+        parallel = new ParallelRun(this, metrics, Math.min(threads, numFlows), lookahead, numMessages);
+        try {
+            parallel.run();
+        } finally {
+            parallel = null;
+        }
+        finishRun(gcBefore);
+    }
+
+    /**
+     * utility method, also used by UdpLoopback: check the endpoints and
+     * reset the state of the previous run.
+     */
+    void startRun() {
+        for (int id = 0; id < 2 * numFlows; id++) {
+            if (endpoints[id] == null) {
+                throw new IllegalStateException("sim run without sender or receiver.");
+            }
+        }
+
+        if ((workload != null || sendBuffer < Integer.MAX_VALUE) && (numFlows > 1 || bidirectional)) {
+            throw new IllegalStateException("a workload or send buffer needs a single flow in one direction.");
+        }
+        if (workload != null) {
+            workload.reset();
+            for (int id = 0; id < 2; id++) {
+                if (endpoints[id] instanceof Labelling) {
+                    ((Labelling) endpoints[id]).setLabelPackets(false);
                 }
-            } else {
-                System.out.println("INTERNAL PANIC: unknown event type \n");
-                System.exit(1);
             }
         }
+
+        if (fateReplay != null) {
+            fateReplay.rewind();
+        }
+
+        initRandomStreams();
+        heldArrivals = 0;
+        messagesSent = 1;
+        messagesDelivered = 0;
+        simulationTime = 0.0;
+        channelTail[TO_RECEIVER] = 0.0;
+        channelTail[TO_SENDER] = 0.0;
+        arrivalTail = 0.0;
+        channels[TO_RECEIVER].reset();
+        channels[TO_SENDER].reset();
+        for (Impairment[] models : impairments) {
+            for (Impairment model : models) {
+                model.reset();
+            }
+        }
+
+        for (int id = 0; id < 2 * numFlows; id++) {
+            tracer.endpoint(id, endpoints[id].getName());
+        }
+        eventsProcessed = 0;
+        maxLagNanos = 0;
+        totalLagNanos = 0;
+        metrics.reset();
+    }
+
+    /**
+     * utility method, also used by UdpLoopback: record the wall clock time
+     * and garbage collections of the run and trace its summary.
+     */
+    void finishRun(long gcBefore) {
+        wallClockNanos = System.nanoTime() - startNanos;
+        startNanos = 0;
+        gcCount = collectionCount() - gcBefore;
+        if (tracer.isEnabled(Tracer.INFO)) {
+            tracer.text(Tracer.INFO, simulationTime, "NetworkSimulator summary: " + metrics.toJson());
+        }
+        try {
+            tracer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * private utility method: (re)create the random streams from the seed, in
+     * a fixed order so each stream only depends on the seed.
+     */
+    private void initRandomStreams() {
+        SplittableRandom root = new SplittableRandom(seed);
+        arrivalRng = root.split();
+        lossRng = root.split();
+        corruptRng = root.split();
+        delayRng = root.split();
+        payloadRng = root.split();
+        impairmentRng = root.split();
+    }
+
+    /**
+     * @return the seed of this instance's random number generator, pass it
+     * to the constructor to replay this run.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return the current simulation time.
+     */
+    public double getTime() {
+        return parallel != null ? parallel.time() : simulationTime;
+    }
+
+    public int getNumLost() {
+        return numLost;
+    }
+
+    public int getNumCorrupt() {
+        return numCorrupt;
+    }
+
+    /**
+     * @return the number of packets the channels dropped, e.g. from a full
+     * bottleneck queue, as opposed to those lost at random (getNumLost()).
+     */
+    public int getNumDropped() {
+        return numDropped;
+    }
+
+    /**
+     * @return the number of extra copies of packets the network delivered (see Duplication).
+     */
+    public int getNumDuplicated() {
+        return numDuplicated;
+    }
+
+    /**
+     * @return the number of packets held back so later ones overtook them (see Reordering).
+     */
+    public int getNumReordered() {
+        return numReordered;
+    }
+
+    public int getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return the number of calls to sendToApplicationLayer so far.
+     */
+    public int getMessagesDelivered() {
+        return messagesDelivered;
+    }
+
+    /**
+     * @return the number of events processed by the last (or current) run.
+     */
+    public long getEventsProcessed() {
+        return eventsProcessed;
+    }
+
+    /**
+     * @return the event rate in wall clock time of the run in progress, or of
+     * the last completed run.
+     */
+    public double getEventsPerSecond() {
+        long nanos = startNanos != 0 ? System.nanoTime() - startNanos : wallClockNanos;
+        return nanos == 0 ? 0.0 : eventsProcessed * 1e9 / nanos;
+    }
+
+    /**
+     * Select the integrity check the transport layers put in their packets
+     * and verify them with, Integrity.SUM by default.
+     */
+    public void setIntegrity(Integrity integrity) {
+        this.integrity = integrity;
+    }
+
+    public Integrity getIntegrity() {
+        return integrity;
+    }
+
+    /**
+     * @return the metrics of the run in progress or of the last completed run.
+     */
+    public Metrics getMetrics() {
+        return parallel != null ? parallel.metrics() : metrics;
+    }
+
+    /**
+     * @return the wall clock time of the last completed run in nanoseconds.
+     */
+    public long getWallClockNanos() {
+        return wallClockNanos;
+    }
+
+    /**
+     * @return the number of garbage collections during the last completed run.
+     */
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
     }
 
     /**
      * A utility method for TransportLayer objects to stop a timer event (timeout)
      * previously scheduled with startTimer(TransportLayer, double).  If no
      * timer event was previously scheduled for 't' then this method will only
-     * print a warning.
+     * print a warning.  Timers started with startTimer(TransportLayer, double, int)
+     * are not affected and must be stopped with cancelTimer(long).
      * @param t the TransportLayer instance that previously called startTimer(...)
      */
     public void stopTimer(TransportLayer t) {
-        boolean removed = false;
-        if (debugLevel > 2) {
-            System.out.format("        (%.2f) NetworkSimulator: STOP TIMER.\n", simulationTime);
-        }
-        Iterator<Event> i = eventQueue.iterator();
-        while(i.hasNext()) {
-            Event e = i.next();
-            if (e.getEvType() == EventType.TIMER_INTERRUPT && e.getEvEntity().equals(t)) {
-                i.remove();
-                removed = true;
-            }
-        }
-        if (!removed) {
-            System.out.println("Warning: unable to cancel timer for " + t.getName() + " as it doesn't seem to exist.");
+        tracer.event(TraceEvent.SIM_STOP_TIMER, simulationTime, t.getEndpointId());
+        long handle = defaultTimers[t.getEndpointId()];
+        defaultTimers[t.getEndpointId()] = 0;
+        if (!cancelTimer(handle)) {
+            tracer.event(TraceEvent.TIMER_STOP_MISSING, simulationTime, t.getEndpointId());
         }
     }
 
@@ -176,22 +708,80 @@ public class NetworkSimulator {
      * timeout event will occur at the current simulation time + the value of
      * the increment argument.  When this event is processed from the event queue
      * the result is a call to t.timerInterrupt()
+     *
+     * Only one such timer may be running per TransportLayer; use
+     * startTimer(TransportLayer, double, int) for additional timers.
      * @param t the TransportLayer instance to notify on expiration of this timer
      * @param increment the amount of time into the future at which this timer
      * should trigger.  A call to startTimer(t, 100.0) will cause a timeout at
      * 100.0 time units from the current simulation time.
+     * @return the handle of the timer, or of the already running timer for t.
      */
-    public void startTimer(TransportLayer t, double increment) {
-        if (debugLevel > 2) {
-            System.out.format("        (%.2f) NetworkSimulator: START TIMER.\n", simulationTime);
+    public long startTimer(TransportLayer t, double increment) {
+        // the handle may have been passed to cancelTimer(long), which leaves it here
+        long existing = defaultTimers[t.getEndpointId()];
+        if (existing != 0 && isTimerActive(existing)) {
+            tracer.event(TraceEvent.TIMER_EXISTS, simulationTime, t.getEndpointId());
+            return existing;
         }
-        for (Event e : eventQueue) {
-            if (e.getEvType() == EventType.TIMER_INTERRUPT && e.getEvEntity().equals(t)) {
-                System.out.println("Attempting to start timer for " + t.getName() + " when one already exists.");
-                return;
-            }
+        long handle = scheduleTimer(t, increment, DEFAULT_TIMER);
+        defaultTimers[t.getEndpointId()] = handle;
+        return handle;
+    }
+
+    /**
+     * Start an additional timer for t.  Any number of these may be running for
+     * the same TransportLayer; when one expires t.timerInterrupt(tag) is
+     * called so the layer can tell them apart (e.g. tag = sequence number for
+     * per-packet timers).
+     * @param t the TransportLayer instance to notify on expiration of this timer
+     * @param increment the amount of time into the future at which this timer
+     * should trigger.
+     * @param tag value handed back to t.timerInterrupt(int), any value but
+     * DEFAULT_TIMER.
+     * @return a handle that may be passed to cancelTimer(long).
+     * @throws IllegalArgumentException if tag is DEFAULT_TIMER.
+     */
+    public long startTimer(TransportLayer t, double increment, int tag) {
+        if (tag == DEFAULT_TIMER) {
+            throw new IllegalArgumentException("tag " + DEFAULT_TIMER + " is reserved for startTimer(TransportLayer, double)");
         }
-        eventQueue.add(new Event(simulationTime + increment, EventType.TIMER_INTERRUPT, t));
+        return scheduleTimer(t, increment, tag);
+    }
+
+    /**
+     * Schedule a timer for both startTimer methods.
+     * @return its handle.
+     */
+    long scheduleTimer(TransportLayer t, double increment, int tag) {
+        tracer.event(TraceEvent.SIM_START_TIMER, simulationTime, t.getEndpointId());
+        return queue().add(getTime() + increment, EventQueue.TIMER_INTERRUPT, t.getEndpointId(), null, tag);
+    }
+
+    /**
+     * Cancel a timer previously returned by one of the startTimer methods in
+     * O(log n).
+     * @param handle the value returned by startTimer.
+     * @return true if the timer was running and has been cancelled.
+     */
+    public boolean cancelTimer(long handle) {
+        return queue().remove(handle);
+    }
+
+    /**
+     * @param handle the value returned by startTimer.
+     * @return true if the timer has neither expired nor been cancelled.
+     */
+    public boolean isTimerActive(long handle) {
+        return queue().contains(handle);
+    }
+
+    /**
+     * The event queue of the calling transport layer.  Package private for
+     * DeliveryOrderCheck, which scans it as the simulator used to.
+     */
+    EventQueue queue() {
+        return parallel != null ? parallel.queue() : eventQueue;
     }
 
     /**
@@ -201,207 +791,442 @@ public class NetworkSimulator {
      * NetworkSimulation was instantiated.
      * @param source the TransportLayer sending pkt.  The source field is used
      * to determine where the data goes when it arrives at the other end of the
-     * simulated network.
+     * simulated network: the other endpoint of the source's flow, whose id
+     * the delivered packet carries as its flow id.
      * @param pkt the TransportLayerPacket to send via unreliable transport.
      */
     public void sendToNetworkLayer(TransportLayer source, TransportLayerPacket pkt) {
-        // network loses packets with a probability of lossProb
-        if (rng.nextDouble() < lossProb) {
-            numLost++;
-            if (debugLevel > 0) {
-                System.out.format("        (%.2f) NetworkSimulator: %s losing packet: (%s)\n", simulationTime, source.getName(), pkt);
+        if (parallel != null) {
+            parallel.send(source.getEndpointId(), pkt);
+        } else {
+            transmit(simulationTime, source.getEndpointId(), pkt);
+        }
+    }
+
+    /**
+     * The network side of sendToNetworkLayer: apply the impairments, loss
+     * and corruption, put the packet through its channel and schedule its
+     * delivery, and that of a duplicate.
+     * @param time the time the packet was sent.
+     * @param source the endpoint id of the sender.
+     */
+    void transmit(double time, int source, TransportLayerPacket pkt) {
+        int destination = source ^ 1;
+        int direction = destination & 1;
+        packetsSent[direction]++;
+        payloadBytesSent[direction] += pkt.getData().length;
+        metrics.packetSent(source);
+        boolean replayed = fateReplay != null && fateReplay.next(direction, fate);
+        int impaired = replayed ? 0 : drawImpairments(direction);
 
+        // network loses packets with a probability of lossProb (the stream is only used for that, so 0 needs no draw)
+        if (replayed ? fate.outcome == PacketFate.LOST
+                : (lossProb > 0 && lossRng.nextDouble() < lossProb) || (impaired & Impairment.LOSE) != 0) {
+            numLost++;
+            tracer.packet(TraceEvent.NET_LOSS, time, source, pkt);
+            if (fateRecorder != null) {
+                fate.outcome = PacketFate.LOST;
+                fate.corruption = PacketFate.NOT_CORRUPTED;
+                fateRecorder.record(direction, fate);
             }
             return;
         }
-        TransportLayerPacket pktCopy = new TransportLayerPacket(pkt);
-        if (rng.nextDouble() < corruptProb) {
-
+        TransportLayerPacket pktCopy = new TransportLayerPacket(pkt); // shares the payload with pkt
+        pktCopy.setFlowId(flowOf(destination));
+        if (!replayed) {
+            fate.corruption = PacketFate.NOT_CORRUPTED;
+            if (corruptProb > 0 && corruptRng.nextDouble() < corruptProb) {
+                drawCorruption(pktCopy);
+            }
+        }
+        if (fate.corruption != PacketFate.NOT_CORRUPTED) {
             numCorrupt++;
-            double x;
-            if ((x = rng.nextDouble()) < .75) { // payload
-                if (debugLevel > 0) {
-                    System.out.format("        (%.2f) NetworkSimulator: %s corrupting packet payload: (%s)\n", simulationTime, source.getName(), pkt);
-                }
-                byte[] pktData = pktCopy.getData();
-                for (int i = (rng.nextInt(4) + 1); i >= 0; i--) {
-                    pktData[rng.nextInt(pktData.length)] = (byte) (rng.nextInt(26) + 97);
-                }
-            } else if (x < .875) { // seqnum
-                if (debugLevel > 0) {
-                    System.out.format("        (%.2f) NetworkSimulator: %s corrupting packet seqnum: (%s)\n", simulationTime, source.getName(), pkt);
-                }
-                pktCopy.setSeqnum(-99999); // should never be negative...
-            } else { // acknum
-                if (debugLevel > 0) {
-                    System.out.format("        (%.2f) NetworkSimulator: %s corrupting packet acknum: (%s)\n", simulationTime, source.getName(), pkt);
-                }
-                pktCopy.setAcknum(-99999); // should never be negative...
+            applyCorruption(time, source, pkt, pktCopy);
+        }
+        boolean reordered = replayed ? fate.reordered : (impaired & Impairment.REORDER) != 0;
+        double deliveryTime;
+        if (!replayed) {
+            deliveryTime = channels[direction].transmit(time, pktCopy.getWireSize(), delayRng);
+        } else if (fate.outcome == PacketFate.DELIVERED) {
+            deliveryTime = fateReplay.deliveryTime(direction, time, fate.delay, reordered);
+        } else {
+            deliveryTime = Double.NaN;
+        }
+        if (Double.isNaN(deliveryTime)) {
+            numDropped++;
+            tracer.packet(TraceEvent.NET_DROP, time, source, pkt);
+            if (fateRecorder != null) {
+                fate.outcome = PacketFate.DROPPED;
+                fateRecorder.record(direction, fate);
             }
+            return;
         }
-        double lastTime = simulationTime; // where we're at right now...
-        for (Event e : eventQueue) {
-            if (e.getEvType() != EventType.TIMER_INTERRUPT && e.getEvTime() > lastTime) {
-                lastTime = e.getEvTime();
+        if (reordered) {
+            // held back past the channel tail, so the packets behind it don't wait for it
+            numReordered++;
+            tracer.packet(TraceEvent.NET_REORDER, time, source, pkt);
+            if (!replayed) {
+                deliveryTime += reorderDelay(direction);
             }
+        } else {
+            channelTail[direction] = Math.max(channelTail[direction], deliveryTime);
         }
 
-        if (debugLevel > 1) {
-            System.out.format("        (%.2f) NetworkSimulator.sendToNetworkLayer(%s, %s)\n", simulationTime, source.getName(), pktCopy.toString());
+        // a duplicate follows the packet through the channel, unless the channel drops it
+        double duplicateTime = Double.NaN;
+        if (replayed ? !Double.isNaN(fate.duplicateDelay) : (impaired & Impairment.DUPLICATE) != 0) {
+            duplicateTime = replayed ? fateReplay.deliveryTime(direction, time, fate.duplicateDelay, false)
+                    : channels[direction].transmit(time, pktCopy.getWireSize(), delayRng);
+            if (!Double.isNaN(duplicateTime)) {
+                channelTail[direction] = Math.max(channelTail[direction], duplicateTime);
+            }
+        }
+        if (fateRecorder != null) {
+            fate.outcome = PacketFate.DELIVERED;
+            fate.delay = deliveryTime - time;
+            fate.reordered = reordered;
+            fate.duplicateDelay = duplicateTime - time;
+            fateRecorder.record(direction, fate);
+        }
+
+        tracer.packet(TraceEvent.NET_SEND, time, source, pktCopy);
+        deliver(deliveryTime, destination, pktCopy);
+        if (!Double.isNaN(duplicateTime)) {
+            numDuplicated++;
+            TransportLayerPacket duplicate = new TransportLayerPacket(pktCopy);
+            duplicate.corrupted = pktCopy.corrupted;
+            tracer.packet(TraceEvent.NET_DUPLICATE, time, source, duplicate);
+            deliver(duplicateTime, destination, duplicate);
         }
-        eventQueue.add(new Event((lastTime + (1 + 2 * rng.nextFloat())), EventType.FROM_LAYER3, (source.equals(sender) ? receiver : sender), pktCopy));
     }
 
     /**
-     * A utility method used by TransportLayer objects to deliver data to the
-     * simulated application layer.  This method just acts as a data sink.
-     * @param source the TransportLayer instance sending the traffic.
-     * @param data the data to be delivered.
+     * private utility method: schedule the delivery of a packet.
      */
-    public void sendToApplicationLayer(TransportLayer source, byte[] data) {
-        if (debugLevel > 0) {
-            System.out.format("        (%.2f) NetworkSimulator.sendToApplicationLayer(%s, %s)\n", simulationTime, source.getName(), new String(data));
+    private void deliver(double deliveryTime, int destination, TransportLayerPacket pkt) {
+        if (parallel != null) {
+            parallel.deliver(deliveryTime, destination, pkt);
+        } else {
+            eventQueue.add(deliveryTime, EventQueue.FROM_LAYER3, destination, pkt, 0);
         }
     }
 
     /**
-     * A utility method that clients of the simulator may use to visualize the
-     * event queue for debugging purposes.  This will happen automatically at
-     * debugLevel > 2.
+     * The loss and corruption of the network model, for a real network
+     * (UdpLoopback) that carries the packet itself: counts pkt as sent and
+     * draws its fate with lossProb and corruptProb.
+     * @return null if the packet is lost, otherwise the packet to put on the
+     * wire, a corrupted copy if it is corrupted.
      */
-    public void printEventQueue() {
-        StringBuilder sb = new StringBuilder();
-        Event[] events = new Event[0];
-        events = eventQueue.toArray(events);
-        Arrays.sort(events);
-        sb.append("        Event Queue {\n");
-        for (int i = 0; i < events.length; i++) {
-            sb.append("                ");
-            sb.append(events[i]);
-            sb.append("\n");
+    TransportLayerPacket impair(int source, TransportLayerPacket pkt) {
+        int direction = (source ^ 1) & 1;
+        packetsSent[direction]++;
+        payloadBytesSent[direction] += pkt.getData().length;
+        metrics.packetSent(source);
+        int impaired = drawImpairments(direction);
+        if ((lossProb > 0 && lossRng.nextDouble() < lossProb) || (impaired & Impairment.LOSE) != 0) {
+            numLost++;
+            tracer.packet(TraceEvent.NET_LOSS, getTime(), source, pkt);
+            return null;
         }
-        sb.append("        }");
-        System.out.println(sb.toString());
+        if (corruptProb > 0 && corruptRng.nextDouble() < corruptProb) {
+            numCorrupt++;
+            TransportLayerPacket pktCopy = new TransportLayerPacket(pkt);
+            drawCorruption(pktCopy);
+            applyCorruption(getTime(), source, pkt, pktCopy);
+            return pktCopy;
+        }
+        return pkt;
     }
 
     /**
-     * A private class used to generate the simulation.  Students should not
-     * modify or utilize this class.
+     * @param direction TO_RECEIVER or TO_SENDER.
+     * @return the number of packets handed to the network layer in that
+     * direction, including those it lost.
      */
-    private static class Event implements Comparable<Event> {
+    public long getPacketsSent(int direction) {
+        return packetsSent[direction];
+    }
 
-        private double evTime;
-        private EventType evType;
-        private TransportLayer evEntity;
-        private TransportLayerPacket pkt;
+    /**
+     * @param direction TO_RECEIVER or TO_SENDER.
+     * @return the payload bytes of all packets handed to the network layer in
+     * that direction.
+     */
+    public long getPayloadBytesSent(int direction) {
+        return payloadBytesSent[direction];
+    }
 
-        public Event(double evTime, EventType evType, TransportLayer evEntity) {
-            this(evTime, evType, evEntity, null);
-        }
+    /**
+     * The corruption model: 3 times in 4 the payload has 2 to 5 bytes
+     * replaced by random lower case letters, otherwise the seqnum or the
+     * acknum is set to -99999.  Packets without a payload always have their
+     * seqnum corrupted.  A replacement letter can be the one that was there,
+     * so the copy is only marked corrupted if its contents actually changed.
+     * @param source endpoint id of the sender, for tracing.
+     * @param pkt the packet as it was sent.
+     * @param pktCopy the copy that will be delivered, which is corrupted.
+     */
+    void corrupt(int source, TransportLayerPacket pkt, TransportLayerPacket pktCopy) {
+        drawCorruption(pktCopy);
+        applyCorruption(simulationTime, source, pkt, pktCopy);
+    }
 
-        public Event(double evTime, EventType evType, TransportLayer evEntity, TransportLayerPacket pkt) {
-            this.evTime = evTime;
-            this.evType = evType;
-            this.evEntity = evEntity;
-            this.pkt = pkt;
+    /**
+     * private utility method: draw how pktCopy is corrupted into fate.
+     */
+    private void drawCorruption(TransportLayerPacket pktCopy) {
+        double x;
+        if ((x = corruptRng.nextDouble()) < .75 && pktCopy.getData().length > 0) { // payload (seqnum if there is none)
+            fate.corruption = PacketFate.PAYLOAD;
+            fate.writes = corruptRng.nextInt(4) + 2;
+            for (int i = 0; i < fate.writes; i++) {
+                fate.at[i] = corruptRng.nextInt(pktCopy.getData().length);
+                fate.to[i] = (byte) (corruptRng.nextInt(26) + 97);
+            }
+        } else if (x < .875) { // seqnum
+            fate.corruption = PacketFate.SEQNUM;
+        } else { // acknum
+            fate.corruption = PacketFate.ACKNUM;
         }
+    }
 
-        /**
-         * @return the evTime
-         */
-        public double getEvTime() {
-            return evTime;
+    /**
+     * private utility method: corrupt pktCopy as fate says.
+     */
+    private void applyCorruption(double time, int source, TransportLayerPacket pkt, TransportLayerPacket pktCopy) {
+        if (fate.corruption == PacketFate.PAYLOAD && pktCopy.getData().length > 0) {
+            tracer.packet(TraceEvent.NET_CORRUPT_PAYLOAD, time, source, pkt);
+            byte[] pktData = pktCopy.copyOnWrite(); // leave the sender's copy intact
+            for (int i = 0; i < fate.writes; i++) {
+                pktData[fate.at[i] % pktData.length] = fate.to[i];
+            }
+            pktCopy.corrupted = !Arrays.equals(pktData, pkt.getData());
+        } else if (fate.corruption != PacketFate.ACKNUM) { // seqnum
+            tracer.packet(TraceEvent.NET_CORRUPT_SEQNUM, time, source, pkt);
+            pktCopy.setSeqnum(-99999); // should never be negative...
+            pktCopy.corrupted = pkt.getSeqnum() != -99999;
+        } else { // acknum
+            tracer.packet(TraceEvent.NET_CORRUPT_ACKNUM, time, source, pkt);
+            pktCopy.setAcknum(-99999); // should never be negative...
+            pktCopy.corrupted = pkt.getAcknum() != -99999;
         }
+    }
 
-        /**
-         * @return the evType
-         */
-        public EventType getEvType() {
-            return evType;
+    /**
+     * private utility method: what the impairments of a direction do to the next packet.
+     */
+    private int drawImpairments(int direction) {
+        int impaired = 0;
+        for (Impairment model : impairments[direction]) {
+            impaired |= model.next(impairmentRng);
         }
+        return impaired;
+    }
 
-        /**
-         * @return the evEntity
-         */
-        public TransportLayer getEvEntity() {
-            return evEntity;
+    /**
+     * private utility method: the longest hold back of the models of a direction.
+     */
+    private double reorderDelay(int direction) {
+        double delay = 0.0;
+        for (Impairment model : impairments[direction]) {
+            delay = Math.max(delay, model.getReorderDelay());
         }
+        return delay;
+    }
+
+    /**
+     * Put the packets of one direction through impairment models, e.g. a
+     * GilbertElliott for bursty loss together with a Reordering, or none to
+     * remove them.  They apply as well as the loss and corruption
+     * probabilities given to the constructor (pass 0 for those to use only
+     * the models), and draw from their own random stream, so adding them
+     * doesn't change the other draws of a seeded run.  Each direction needs
+     * its own instances.  UdpLoopback only applies their losses.
+     * @param direction TO_RECEIVER or TO_SENDER.
+     */
+    public void setImpairments(int direction, Impairment... models) {
+        impairments[direction] = models.clone();
+    }
 
-        /**
-         * @return the pkt
-         */
-        public TransportLayerPacket getPkt() {
-            return pkt;
+    /**
+     * Replace the model of one direction of the network, e.g. with a Link.
+     * Loss and corruption are still applied first, with the probabilities
+     * given to the constructor.
+     * @param direction TO_RECEIVER or TO_SENDER.
+     * @param channel the channel, or null for the default: every packet
+     * takes 1 to 3 time units (uniform) and is delivered after every pending
+     * packet in either direction and every pending layer 5 arrival.
+     */
+    public void setChannel(int direction, Channel channel) {
+        channels[direction] = channel != null ? channel : new FifoChannel();
+    }
+
+    public Channel getChannel(int direction) {
+        return channels[direction];
+    }
+
+    /**
+     * The default channel.  FIFO: the packet is delivered after every pending
+     * non timer event (either direction, and layer 5 arrivals) as it always
+     * has been.  The tails only ever grow and events leave the queue in time
+     * order, so the largest tail that is still ahead of now is that event's
+     * time.
+     */
+    private class FifoChannel implements Channel {
+
+        @Override
+        public double transmit(double now, int bytes, SplittableRandom random) {
+            double lastTime = Math.max(now, Math.max(arrivalTail,
+                    Math.max(channelTail[TO_RECEIVER], channelTail[TO_SENDER])));
+            return lastTime + (1 + 2 * random.nextDouble());
         }
 
-        public static String eventTypeToString(EventType t) {
-            switch (t) {
-                case TIMER_INTERRUPT:
-                    return "TIMER_INTERRUPT";
-                case FROM_LAYER5:
-                    return "FROM_LAYER5";
-                case FROM_LAYER3:
-                    return "FROM_LAYER3";
-                default:
-                    return "";
-            }
+        @Override
+        public double getMinDelay() {
+            return 1.0;
         }
 
         @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
+        public void reset() {
+        }
+    }
+
+    /**
+     * The latest delivery time scheduled so far on one direction of the
+     * simulated channel.  Channels are FIFO, so sendToNetworkLayer never
+     * delivers a packet in that direction before this time.
+     * @param direction TO_RECEIVER or TO_SENDER.
+     * @return the channel tail, may be in the past.
+     */
+    public double getChannelTail(int direction) {
+        return channelTail[direction];
+    }
+
+    /**
+     * A utility method used by TransportLayer objects to deliver data to the
+     * simulated application layer.  This method just acts as a data sink,
+     * or hands the data to the Workload if there is one.
+     * @param source the TransportLayer instance sending the traffic.
+     * @param data the data to be delivered.
+     */
+    public void sendToApplicationLayer(TransportLayer source, byte[] data) {
+        if (parallel != null) {
+            parallel.messageDelivered(source.getEndpointId());
+            return;
+        }
+        messagesDelivered++;
+        metrics.messageDelivered(source.getEndpointId(), simulationTime);
+        tracer.data(TraceEvent.APP_DELIVER, simulationTime, source.getEndpointId(), data);
+        if (workload != null) {
+            workload.deliver(data);
+        }
+        if (heldArrivals > 0) {
+            heldArrivals--;
+            eventQueue.add(simulationTime, EventQueue.FROM_LAYER5, SENDER, null, 1);
+        }
+    }
+
+    /**
+     * A utility method that clients of the simulator may use to visualize the
+     * event queue for debugging purposes.  The queue is traced automatically
+     * at debugLevel > 2 (Tracer.EVENTS).
+     */
+    public void printEventQueue() {
+        StringBuilder sb = new StringBuilder();
+        int[] slots = eventQueue.sortedSlots();
+        sb.append("        Event Queue {\n");
+        for (int i = 0; i < slots.length; i++) {
+            TransportLayerPacket pkt = eventQueue.packetOf(slots[i]);
+            sb.append("                ");
             sb.append("EVENT(time=");
-            sb.append(NumberFormat.getInstance().format(evTime));
+            sb.append(NumberFormat.getInstance().format(eventQueue.timeOf(slots[i])));
             sb.append(", type=");
-            sb.append(eventTypeToString(evType));
+            sb.append(eventTypeToString(eventQueue.typeOf(slots[i])));
             sb.append(", pkt=");
             sb.append((pkt != null) ? pkt.toString() : "[no data])");
-            return sb.toString();
+            sb.append("\n");
         }
+        sb.append("        }");
+        System.out.println(sb.toString());
+    }
 
-        public int compareTo(Event o) {
-            if (this.evTime < o.evTime) {
-                return -1;
-            } else if (this.evTime > o.evTime) {
-                return 1;
-            } else {
-                return 0;
-            }
+    /**
+     * private utility method: trace the event queue as printEventQueue() prints it.
+     */
+    private void traceEventQueue() {
+        int[] slots = eventQueue.sortedSlots();
+        tracer.event(TraceEvent.QUEUE_BEGIN, simulationTime, -1);
+        for (int i = 0; i < slots.length; i++) {
+            tracer.packet(TraceEvent.QUEUE_ENTRY, eventQueue.timeOf(slots[i]), -1, eventQueue.packetOf(slots[i]), eventQueue.typeOf(slots[i]));
         }
+        tracer.event(TraceEvent.QUEUE_END, simulationTime, -1);
     }
 
-    public static byte[] randomLetters() {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        for (int i = 0; i < 20; i++) {
-            bos.write(rng.nextInt(26) + 97);
+    private static String eventTypeToString(byte t) {
+        switch (t) {
+            case EventQueue.TIMER_INTERRUPT:
+                return "TIMER_INTERRUPT";
+            case EventQueue.FROM_LAYER5:
+                return "FROM_LAYER5";
+            case EventQueue.FROM_LAYER3:
+                return "FROM_LAYER3";
+            default:
+                return "";
         }
-        return bos.toByteArray();
+    }
+
+    public byte[] randomLetters() {
+        byte[] letters = new byte[20];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = (byte) (payloadRng.nextInt(26) + 97);
+        }
+        return letters;
     }
 
     /**
      * private utility method used in running the simulation.
      */
     private void generateNextArrival() {
-        if (debugLevel > 2) {
-            System.out.format("        (%.2f) NetworkSimulator: generateNextArrival()\n", simulationTime);
-        }
-        double x = lambda * rng.nextDouble() * 2;
-        Event evt = new Event(simulationTime + x, EventType.FROM_LAYER5, (bidirectional && (rng.nextDouble() > 0.5)) ? receiver : sender);
-        eventQueue.add(evt);
+        tracer.event(TraceEvent.SIM_ARRIVAL, simulationTime, -1);
+        double arrivalTime = nextArrivalTime(simulationTime);
+        arrivalTail = Math.max(arrivalTail, arrivalTime);
+        eventQueue.add(arrivalTime, EventQueue.FROM_LAYER5, nextArrivalEndpoint(), null, 0);
+    }
+
+    /**
+     * The time of the layer 5 arrival after one at time now, call
+     * nextArrivalEndpoint() next.
+     */
+    double nextArrivalTime(double now) {
+        return now + lambda * arrivalRng.nextDouble() * 2;
     }
 
     /**
-     * Static initializer for the random number generator.
+     * The endpoint of the layer 5 arrival whose time nextArrivalTime returned.
      */
-    static {
-        rng = new Random();
+    int nextArrivalEndpoint() {
+        int end = (bidirectional && (arrivalRng.nextDouble() > 0.5)) ? RECEIVER : SENDER;
+        int flow = numFlows > 1 ? arrivalRng.nextInt(numFlows) : 0;
+        return 2 * flow + end;
     }
 
     /**
-     * The types of events that appear in the queue.
+     * Called by ParallelRun when the workers have finished: the time of the
+     * last event, the totals of the counters the workers kept.
      */
-    private enum EventType {
+    void finishParallel(double lastEventTime, long events, int arrivals, int delivered) {
+        simulationTime = lastEventTime;
+        eventsProcessed = events;
+        messagesSent += arrivals;
+        messagesDelivered = delivered;
+    }
 
-        TIMER_INTERRUPT, FROM_LAYER5, FROM_LAYER3
-    };
+    /**
+     * @return the handles of the timers started with
+     * startTimer(TransportLayer, double) by endpoint id, 0 where none runs.
+     */
+    long[] defaultTimers() {
+        return defaultTimers;
+    }
 }
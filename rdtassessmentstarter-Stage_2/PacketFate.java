@@ -0,0 +1,29 @@
+/**
+ * What the network did to one packet: lost, dropped by its channel or
+ * delivered after a delay, possibly reordered or with a duplicate, and how
+ * it was corrupted.  The simulator fills it
+ * in for every packet it transmits, from its random streams or from a
+ * FateReplay, and a FateRecorder writes it out.
+ */
+class PacketFate {
+
+    static final int DELIVERED = 0;
+    static final int LOST = 1;
+    static final int DROPPED = 2;
+
+    static final int NOT_CORRUPTED = 0;
+    static final int PAYLOAD = 1;   // the bytes at[i] (modulo the payload length) are set to to[i]
+    static final int SEQNUM = 2;    // also used for PAYLOAD if the packet has no payload
+    static final int ACKNUM = 3;
+
+    static final int MAX_WRITES = 5;
+
+    int outcome;
+    int corruption;
+    int writes;                 // the number of payload bytes overwritten
+    final int[] at = new int[MAX_WRITES];
+    final byte[] to = new byte[MAX_WRITES];
+    double delay;               // delivery time minus send time, if DELIVERED
+    boolean reordered;          // held back behind later packets, if DELIVERED
+    double duplicateDelay = Double.NaN; // delivery time of a duplicate minus send time, NaN if there is none
+}
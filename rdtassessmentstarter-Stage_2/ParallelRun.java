@@ -0,0 +1,392 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * One run of NetworkSimulator.runSimulation(int).  Each worker thread owns a
+ * contiguous block of flows with their event queue, their default timers and
+ * a Metrics for what happens in its transport layers.  The workers meet at a
+ * barrier between windows, and the barrier action, which runs on the last
+ * thread to arrive while the others wait, plays the network and the layer 5
+ * arrivals for all flows:
+ *
+ *  1. the packets sent in the window are merged by send time (ties by
+ *     worker, then in the order they were sent) and put through
+ *     NetworkSimulator.transmit, which schedules their delivery in the
+ *     destination's worker;
+ *  2. the next window starts at the earliest event of any worker or the next
+ *     arrival and ends a lookahead later;
+ *  3. the arrivals before the end of the window are drawn and scheduled.
+ *
+ * The default channel delivers after the latest scheduled arrival; when a
+ * packet is transmitted the arrival tail is set to what it was at its send
+ * time in a sequential run.
+ */
+class ParallelRun {
+
+    private final NetworkSimulator simulator;
+    private final Metrics metrics;  // the simulator's, for the network and the totals
+    private final double lookahead;
+    private final int numMessages;
+    private final Worker[] workers;
+    private final int flowsPerWorker;
+    private final CyclicBarrier barrier;
+
+    private double windowEnd;
+    private boolean done;
+    private boolean started;
+    private volatile Throwable failure;
+
+    // layer 5 arrivals: the next one, not scheduled yet, and the times of the scheduled ones the network has not passed
+    private int arrivalsDrawn;
+    private double nextArrivalTime = Double.NaN;
+    private int nextArrivalEndpoint;
+    private double[] scheduledArrivals = new double[64];
+    private int scheduledHead;
+    private int scheduledSize;
+    private double lastPassedArrival;
+
+    ParallelRun(NetworkSimulator simulator, Metrics metrics, int threads, double lookahead, int numMessages) {
+        this.simulator = simulator;
+        this.metrics = metrics;
+        this.lookahead = lookahead;
+        this.numMessages = numMessages;
+        int numFlows = simulator.getNumFlows();
+        this.flowsPerWorker = (numFlows + threads - 1) / threads;
+        this.workers = new Worker[(numFlows + flowsPerWorker - 1) / flowsPerWorker];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, 2 * i * flowsPerWorker, 2 * Math.min(numFlows, (i + 1) * flowsPerWorker));
+        }
+        this.barrier = new CyclicBarrier(workers.length, this::betweenWindows);
+    }
+
+    /**
+     * Start the workers and wait for them to finish, then hand the totals to the simulator.
+     */
+    void run() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new IllegalStateException("parallel run failed", failure);
+        }
+
+        double lastEventTime = 0.0;
+        long events = 0;
+        int arrivals = 0;
+        int delivered = 0;
+        for (Worker worker : workers) {
+            lastEventTime = Math.max(lastEventTime, worker.time);
+            events += worker.events;
+            arrivals += worker.arrivals;
+            delivered += worker.delivered;
+            metrics.add(worker.metrics);
+        }
+        simulator.finishParallel(lastEventTime, events, arrivals, delivered);
+    }
+
+    /**
+     * @return the worker running on the calling thread, null if it is not a worker of this run.
+     */
+    private Worker current() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).parallelRun() == this) {
+            return (Worker) thread;
+        }
+        return null;
+    }
+
+    private Worker owner(int endpoint) {
+        return workers[NetworkSimulator.flowOf(endpoint) / flowsPerWorker];
+    }
+
+    /**
+     * @return the simulation time of the calling worker, or of the latest window when called from elsewhere.
+     */
+    double time() {
+        Worker worker = current();
+        return worker != null ? worker.time : windowEnd - lookahead;
+    }
+
+    EventQueue queue() {
+        Worker worker = current();
+        if (worker == null) {
+            throw new IllegalStateException("timers of a parallel run can only be used by its transport layers.");
+        }
+        return worker.queue;
+    }
+
+    /**
+     * @return the metrics of the calling worker, or the simulator's when called from elsewhere.
+     */
+    Metrics metrics() {
+        Worker worker = current();
+        return worker != null ? worker.metrics : metrics;
+    }
+
+    void send(int source, TransportLayerPacket pkt) {
+        owner(source).send(source, pkt);
+    }
+
+    void messageDelivered(int destination) {
+        Worker worker = owner(destination);
+        worker.delivered++;
+        worker.metrics.messageDelivered(destination, worker.time);
+    }
+
+    /**
+     * Called by NetworkSimulator.transmit from the barrier action.
+     */
+    void deliver(double time, int destination, TransportLayerPacket pkt) {
+        owner(destination).queue.add(time, EventQueue.FROM_LAYER3, destination, pkt, 0);
+    }
+
+    /**
+     * The barrier action, see the class comment.
+     */
+    private void betweenWindows() {
+        if (failure != null) {
+            done = true;
+            return;
+        }
+        try {
+            transmitWindow();
+            if (!started) {
+                // sequential runs schedule the first arrival after the layers' init()
+                started = true;
+                drawArrival(0.0);
+            }
+
+            double start = nextArrivalTime;
+            for (Worker worker : workers) {
+                if (!worker.queue.isEmpty()) {
+                    start = Double.isNaN(start) ? worker.queue.peekTime() : Math.min(start, worker.queue.peekTime());
+                }
+            }
+            if (Double.isNaN(start)) {
+                done = true;
+                return;
+            }
+            windowEnd = start + lookahead;
+
+            while (!Double.isNaN(nextArrivalTime) && nextArrivalTime < windowEnd) {
+                Worker worker = owner(nextArrivalEndpoint);
+                worker.queue.add(nextArrivalTime, EventQueue.FROM_LAYER5, nextArrivalEndpoint, null, 0);
+                worker.payloads.add(simulator.randomLetters());
+                scheduleArrival(nextArrivalTime);
+                drawArrival(nextArrivalTime);
+            }
+        } catch (Throwable t) {
+            failure = t;
+            done = true;
+        }
+    }
+
+    /**
+     * Transmit the packets the workers sent in the last window in send time order.
+     */
+    private void transmitWindow() {
+        while (true) {
+            Worker next = null;
+            for (Worker worker : workers) {
+                if (worker.sent < worker.sends
+                        && (next == null || worker.sendTime[worker.sent] < next.sendTime[next.sent])) {
+                    next = worker;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            int i = next.sent++;
+            double time = next.sendTime[i];
+            if (started) {
+                simulator.arrivalTail = arrivalTailAt(time);
+            }
+            simulator.transmit(time, next.sendSource[i], next.sendPacket[i]);
+            next.sendPacket[i] = null;
+        }
+        for (Worker worker : workers) {
+            worker.sends = 0;
+            worker.sent = 0;
+        }
+    }
+
+    /**
+     * Draw the arrival after one at time now, unless all numMessages have been drawn.
+     */
+    private void drawArrival(double now) {
+        if (arrivalsDrawn == numMessages) {
+            nextArrivalTime = Double.NaN;
+            return;
+        }
+        arrivalsDrawn++;
+        nextArrivalTime = simulator.nextArrivalTime(now);
+        nextArrivalEndpoint = simulator.nextArrivalEndpoint();
+    }
+
+    private void scheduleArrival(double time) {
+        if (scheduledSize == scheduledArrivals.length) {
+            double[] grown = new double[scheduledSize * 2];
+            for (int i = 0; i < scheduledSize; i++) {
+                grown[i] = scheduledArrivals[(scheduledHead + i) & (scheduledArrivals.length - 1)];
+            }
+            scheduledArrivals = grown;
+            scheduledHead = 0;
+        }
+        scheduledArrivals[(scheduledHead + scheduledSize) & (scheduledArrivals.length - 1)] = time;
+        scheduledSize++;
+    }
+
+    /**
+     * The latest arrival scheduled by time in a sequential run: the one after the last arrival at or before time.
+     * Called with non decreasing times.
+     */
+    private double arrivalTailAt(double time) {
+        while (scheduledSize > 0 && scheduledArrivals[scheduledHead] <= time) {
+            lastPassedArrival = scheduledArrivals[scheduledHead];
+            scheduledHead = (scheduledHead + 1) & (scheduledArrivals.length - 1);
+            scheduledSize--;
+        }
+        if (scheduledSize > 0) {
+            return scheduledArrivals[scheduledHead];
+        }
+        return Double.isNaN(nextArrivalTime) ? lastPassedArrival : nextArrivalTime;
+    }
+
+    /**
+     * A worker thread and the state of its flows.
+     */
+    private final class Worker extends Thread {
+
+        final int firstEndpoint;
+        final int endEndpoint;
+        final EventQueue queue = new EventQueue();
+        final Metrics metrics;
+        final ArrayDeque<byte[]> payloads = new ArrayDeque<>(); // of the FROM_LAYER5 events in the queue, in time order
+        double time;
+        long events;
+        int arrivals;
+        int delivered;
+
+        // packets sent in the current window, in the order they were sent
+        double[] sendTime = new double[64];
+        int[] sendSource = new int[64];
+        TransportLayerPacket[] sendPacket = new TransportLayerPacket[64];
+        int sends;
+        int sent;   // those the barrier action has transmitted
+
+        Worker(int index, int firstEndpoint, int endEndpoint) {
+            super("NetworkSimulator-worker-" + index);
+            setDaemon(true);
+            this.firstEndpoint = firstEndpoint;
+            this.endEndpoint = endEndpoint;
+            this.metrics = new Metrics(simulator);
+            this.metrics.ensureEndpoints(2 * simulator.getNumFlows());
+        }
+
+        ParallelRun parallelRun() {
+            return ParallelRun.this;
+        }
+
+        void send(int source, TransportLayerPacket pkt) {
+            if (sends == sendTime.length) {
+                sendTime = Arrays.copyOf(sendTime, sends * 2);
+                sendSource = Arrays.copyOf(sendSource, sends * 2);
+                sendPacket = Arrays.copyOf(sendPacket, sends * 2);
+            }
+            sendTime[sends] = time;
+            sendSource[sends] = source;
+            sendPacket[sends] = pkt;
+            sends++;
+        }
+
+        /*
+         * A worker whose transport layers throw keeps meeting the others at the barrier, whose action then ends
+         * the run, so nobody waits for a worker that has gone.
+         */
+        @Override
+        public void run() {
+            try {
+                for (int id = firstEndpoint; id < endEndpoint; id++) {
+                    simulator.getEndpoint(id).init();
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+            while (true) {
+                try {
+                    barrier.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    fail(e); // the barrier stays broken, the other workers leave too
+                    return;
+                }
+                if (done) {
+                    return;
+                }
+                try {
+                    processWindow();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        }
+
+        private void fail(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+
+        private void processWindow() {
+            long[] defaultTimers = simulator.defaultTimers();
+            while (!queue.isEmpty() && queue.peekTime() < windowEnd) {
+                queue.poll();
+                events++;
+                time = queue.polledTime();
+                int endpoint = queue.polledEndpoint();
+                TransportLayer entity = simulator.getEndpoint(endpoint);
+
+                switch (queue.polledType()) {
+                    case EventQueue.FROM_LAYER5:
+                        arrivals++;
+                        metrics.messageSent(endpoint ^ 1, time);
+                        entity.rdt_send(payloads.poll());
+                        break;
+                    case EventQueue.FROM_LAYER3:
+                        entity.rdt_receive(queue.polledPacket());
+                        break;
+                    case EventQueue.TIMER_INTERRUPT:
+                        if (queue.polledTag() == NetworkSimulator.DEFAULT_TIMER) {
+                            defaultTimers[endpoint] = 0;
+                        }
+                        metrics.timerFired();
+                        entity.timerInterrupt(queue.polledTag());
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown event type " + queue.polledType());
+                }
+            }
+        }
+    }
+}
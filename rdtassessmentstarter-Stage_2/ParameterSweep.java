@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Run a NetworkSimulator for every combination of protocol, loss probability,
+ * corruption probability, lambda and window size in a grid.  Each run is an
+ * independent simulator instance with its own seeded random number generator,
+ * so the runs share nothing and are executed in parallel on a ForkJoinPool.
+ * The seed of every run is derived from the sweep seed and the run's position
+ * in the grid, so a sweep (or any single row of it) can be repeated exactly.
+ */
+public class ParameterSweep {
+
+    private int numMessages = 1000;
+    private double[] lossProbs = {0.0};
+    private double[] corruptProbs = {0.0};
+    private double[] lambdas = {10.0};
+    private int[] windowSizes = {2};
+    private long seed = 0;
+    private Protocol[] protocols = {Protocol.GO_BACK_N};
+    private Integrity integrity = Integrity.SUM;
+    private Supplier<Channel> channels;
+    private boolean bidirectional;
+
+    public void setNumMessages(int numMessages) {
+        this.numMessages = numMessages;
+    }
+
+    public void setLossProbs(double... lossProbs) {
+        this.lossProbs = lossProbs;
+    }
+
+    public void setCorruptProbs(double... corruptProbs) {
+        this.corruptProbs = corruptProbs;
+    }
+
+    public void setLambdas(double... lambdas) {
+        this.lambdas = lambdas;
+    }
+
+    /**
+     * Window sizes are applied to the sender and receiver if they are Windowed.
+     */
+    public void setWindowSizes(int... windowSizes) {
+        this.windowSizes = windowSizes;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setProtocols(Protocol... protocols) {
+        this.protocols = protocols;
+    }
+
+    /**
+     * The integrity check used by every run.
+     */
+    public void setIntegrity(Integrity integrity) {
+        this.integrity = integrity;
+    }
+
+    /**
+     * Every run sends both directions through a fresh channel from the
+     * supplier, e.g. () -> new Link(...), instead of the simulator's default.
+     */
+    public void setChannels(Supplier<Channel> channels) {
+        this.channels = channels;
+    }
+
+    /**
+     * Messages arrive at both ends of the flow instead of only the sender,
+     * for protocols that send data both ways.
+     */
+    public void setBidirectional(boolean bidirectional) {
+        this.bidirectional = bidirectional;
+    }
+
+    /**
+     * @return the number of runs in the grid.
+     */
+    public int size() {
+        return protocols.length * lossProbs.length * corruptProbs.length * lambdas.length * windowSizes.length;
+    }
+
+    /**
+     * Run the whole grid.
+     * @param threads number of worker threads, e.g. Runtime.availableProcessors().
+     * @return one result per grid point, in grid order.
+     */
+    public List<Result> run(int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Protocol protocol : protocols) {
+                // every protocol sees the same seeds, so they are compared on the same arrivals and network
+                int index = 0;
+                for (double lossProb : lossProbs) {
+                    for (double corruptProb : corruptProbs) {
+                        for (double lambda : lambdas) {
+                            for (int windowSize : windowSizes) {
+                                final Result params = new Result(protocol, lossProb, corruptProb, lambda, windowSize, runSeed(index++));
+                                futures.add(pool.submit(() -> runOne(params)));
+                            }
+                        }
+                    }
+                }
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("sweep interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("sweep run failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The seed of the index'th run of the grid.
+     */
+    public long runSeed(int index) {
+        return seed + index * 0x9E3779B97F4A7C15L;
+    }
+
+    private Result runOne(Result r) {
+        NetworkSimulator sim = new NetworkSimulator(numMessages, r.lossProb, r.corruptProb, r.lambda, bidirectional, 0, r.seed);
+        sim.setTracer(Tracer.off());
+        sim.setIntegrity(integrity);
+        if (channels != null) {
+            sim.setChannel(NetworkSimulator.TO_RECEIVER, channels.get());
+            sim.setChannel(NetworkSimulator.TO_SENDER, channels.get());
+        }
+        TransportLayer sender = r.protocol.senderFactory.apply("Sender", sim);
+        TransportLayer receiver = r.protocol.receiverFactory.apply("Receiver", sim);
+        if (sender instanceof Windowed) {
+            ((Windowed) sender).setWindowSize(r.windowSize);
+        }
+        if (receiver instanceof Windowed) {
+            ((Windowed) receiver).setWindowSize(r.windowSize);
+        }
+        sim.setSender(sender);
+        sim.setReceiver(receiver);
+        if (sender instanceof TransportLayerSender && ((TransportLayerSender) sender).isCongestionControl()) {
+            r.cwndTrajectory = new CwndRecorder();
+            ((TransportLayerSender) sender).setCwndRecorder(r.cwndTrajectory);
+        }
+
+        long start = System.nanoTime();
+        sim.runSimulation();
+        r.wallMillis = (System.nanoTime() - start) / 1e6;
+        r.simulationTime = sim.getTime();
+        r.delivered = sim.getMessagesDelivered();
+        r.lost = sim.getNumLost();
+        r.corrupt = sim.getNumCorrupt();
+        r.dropped = sim.getNumDropped();
+        r.events = sim.getEventsProcessed();
+        Metrics metrics = sim.getMetrics();
+        r.retransmissions = metrics.getRetransmissions();
+        r.duplicates = metrics.getDuplicates();
+        r.undetected = metrics.getUndetectedCorruptions();
+        r.latencyP50 = metrics.getLatency().percentile(0.5);
+        r.latencyP99 = metrics.getLatency().percentile(0.99);
+        r.acks = sim.getPacketsSent(NetworkSimulator.TO_SENDER);
+        r.ackBytes = sim.getPayloadBytesSent(NetworkSimulator.TO_SENDER);
+        r.packets = sim.getPacketsSent(NetworkSimulator.TO_RECEIVER) + r.acks;
+        if (sender instanceof Retransmitting) {
+            r.rto = ((Retransmitting) sender).getRttEstimator().getRto();
+        }
+        if (sender instanceof TransportLayerSender) {
+            r.recoveryRtts = ((TransportLayerSender) sender).getMeanRecoveryRtts();
+        }
+        r.meanWindow = r.cwndTrajectory != null ? r.cwndTrajectory.meanWindow(r.simulationTime) : r.windowSize;
+        return r;
+    }
+
+    /**
+     * Format results as a tab separated table with a header row.
+     */
+    public static String table(List<Result> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Result.HEADER).append('\n');
+        for (Result r : results) {
+            sb.append(r).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A sender/receiver pair to run.
+     */
+    public static class Protocol {
+
+        public static final Protocol GO_BACK_N = new Protocol("GBN", TransportLayerSender::new, TransportLayerReceiver::new);
+        public static final Protocol SELECTIVE_REPEAT = new Protocol("SR", SelectiveRepeatSender::new, SelectiveRepeatReceiver::new);
+        /** Go-Back-N with a payload-free cumulative ACK for every second packet, or after 5 time units. */
+        public static final Protocol GO_BACK_N_DELAYED_ACK = new Protocol("GBN/delack", TransportLayerSender::new,
+                (name, sim) -> {
+                    TransportLayerReceiver receiver = new TransportLayerReceiver(name, sim);
+                    receiver.setDelayedAck(2, 5.0);
+                    return receiver;
+                });
+        /** Go-Back-N that only recovers through its timer, for comparison with fast retransmit. */
+        public static final Protocol GO_BACK_N_NO_FAST_RETRANSMIT = new Protocol("GBN/nofr", (name, sim) -> {
+            TransportLayerSender sender = new TransportLayerSender(name, sim);
+            sender.setFastRetransmit(false);
+            return sender;
+        }, TransportLayerReceiver::new);
+        /** Full-duplex Go-Back-N at both ends, ACKs piggybacked on data going the other way. */
+        public static final Protocol GO_BACK_N_DUPLEX = new Protocol("GBN/duplex", DuplexTransportLayer::new, DuplexTransportLayer::new);
+        /** Full-duplex Go-Back-N that ACKs every packet on its own, for comparison with piggybacking. */
+        public static final Protocol GO_BACK_N_DUPLEX_NO_PIGGYBACK = new Protocol("GBN/duplex-nopb", (name, sim) -> {
+            DuplexTransportLayer layer = new DuplexTransportLayer(name, sim);
+            layer.setPiggyback(false);
+            return layer;
+        }, (name, sim) -> {
+            DuplexTransportLayer layer = new DuplexTransportLayer(name, sim);
+            layer.setPiggyback(false);
+            return layer;
+        });
+        /** Go-Back-N with AIMD congestion control, the sweep's window size caps the congestion window. */
+        public static final Protocol GO_BACK_N_AIMD = new Protocol("GBN/aimd", (name, sim) -> {
+            TransportLayerSender sender = new TransportLayerSender(name, sim);
+            sender.setCongestionControl(true);
+            return sender;
+        }, TransportLayerReceiver::new);
+
+        final String name;
+        final BiFunction<String, NetworkSimulator, TransportLayer> senderFactory;
+        final BiFunction<String, NetworkSimulator, TransportLayer> receiverFactory;
+
+        public Protocol(String name, BiFunction<String, NetworkSimulator, TransportLayer> senderFactory,
+                        BiFunction<String, NetworkSimulator, TransportLayer> receiverFactory) {
+            this.name = name;
+            this.senderFactory = senderFactory;
+            this.receiverFactory = receiverFactory;
+        }
+
+        /**
+         * @return this protocol with the sender's adaptive RTO replaced by a fixed timeout, for comparison.
+         */
+        public Protocol withFixedTimeout(double timeout) {
+            return new Protocol(name + "/fixed", (layerName, sim) -> {
+                TransportLayer sender = senderFactory.apply(layerName, sim);
+                if (sender instanceof Retransmitting) {
+                    ((Retransmitting) sender).setRttEstimator(RttEstimator.fixed(timeout));
+                }
+                return sender;
+            }, receiverFactory);
+        }
+    }
+
+    /**
+     * The parameters and outcome of one run.
+     */
+    public static class Result {
+
+        static final String HEADER = "protocol\tlossProb\tcorruptProb\tlambda\twindowSize\tseed\tdelivered\tlost\tcorrupt\tdropped\tundetected\tretransmissions\tduplicates\tevents\tacks\tackBytes\tpackets\tsimTime\tgoodput\tlatencyP50\tlatencyP99\trto\tmeanWindow\trecoveryRtts\twallMs";
+
+        final Protocol protocol;
+        final double lossProb;
+        final double corruptProb;
+        final double lambda;
+        final int windowSize;
+        final long seed;
+        int delivered;
+        int lost;
+        int corrupt;
+        int dropped;        // by the channels, e.g. a full bottleneck queue
+        long undetected;    // corrupted packets that passed the integrity check
+        long retransmissions;
+        long duplicates;
+        long events;
+        long acks;      // packets sent on the reverse path
+        long ackBytes;  // their payload bytes
+        long packets;   // packets sent in both directions
+        double simulationTime;
+        double latencyP50;
+        double latencyP99;
+        double rto = Double.NaN;    // the sender's final retransmission timeout
+        double meanWindow;          // time weighted mean congestion window, or windowSize if it is fixed
+        CwndRecorder cwndTrajectory; // only recorded for senders with congestion control
+        double recoveryRtts = Double.NaN; // mean time to recover a lost packet, in RTTs (Go-Back-N only)
+        double wallMillis;
+
+        Result(Protocol protocol, double lossProb, double corruptProb, double lambda, int windowSize, long seed) {
+            this.protocol = protocol;
+            this.lossProb = lossProb;
+            this.corruptProb = corruptProb;
+            this.lambda = lambda;
+            this.windowSize = windowSize;
+            this.seed = seed;
+        }
+
+        /**
+         * @return messages delivered to the application layer per unit of simulation time.
+         */
+        public double getGoodput() {
+            return simulationTime == 0 ? 0.0 : delivered / simulationTime;
+        }
+
+        /**
+         * @return the congestion window over time, or null if the sender's window was fixed.
+         */
+        public CwndRecorder getCwndTrajectory() {
+            return cwndTrajectory;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%.3f\t%.3f\t%.1f\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%.1f\t%.5f\t%.1f\t%.1f\t%.2f\t%.2f\t%.2f\t%.1f",
+                    protocol.name, lossProb, corruptProb, lambda, windowSize, seed, delivered, lost, corrupt, dropped, undetected, retransmissions, duplicates, events,
+                    acks, ackBytes, packets, simulationTime, getGoodput(), latencyP50, latencyP99, rto, meanWindow, recoveryRtts, wallMillis);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.SplittableRandom;
+
+/**
+ * Reordering: a packet is held back with the given probability and arrives
+ * delay later than its channel would deliver it.  It doesn't hold up the
+ * packets behind it, so those sent in the meantime overtake it; how many
+ * that is depends on the sending rate, delay over the time between packets.
+ */
+public class Reordering implements Impairment {
+
+    private final SkipSampler reorder;
+    private final double delay;
+
+    /**
+     * @param probability the fraction of packets held back.
+     * @param delay how long a packet is held back, in units of simulation time.
+     */
+    public Reordering(double probability, double delay) {
+        if (!(delay > 0)) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        reorder = new SkipSampler(probability);
+        this.delay = delay;
+    }
+
+    @Override
+    public int next(SplittableRandom random) {
+        return reorder.next(random) ? REORDER : 0;
+    }
+
+    @Override
+    public double getReorderDelay() {
+        return delay;
+    }
+
+    @Override
+    public void reset() {
+        reorder.reset();
+    }
+}
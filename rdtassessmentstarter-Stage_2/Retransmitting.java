@@ -0,0 +1,9 @@
+/*
+ * A sender that retransmits on a timeout taken from an RttEstimator, e.g. so ParameterSweep can report or fix it.
+ */
+public interface Retransmitting {
+
+    RttEstimator getRttEstimator();
+
+    void setRttEstimator(RttEstimator rttEstimator);
+}
@@ -0,0 +1,134 @@
+/**
+ * Retransmission timeout (RTO) estimation from measured round trip times, in
+ * the style of Jacobson/Karels (RFC 6298).  A smoothed RTT and an RTT
+ * variation are kept as exponentially weighted moving averages:
+ *
+ *   first sample R:  SRTT = R, RTTVAR = R/2
+ *   later samples:   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *                    SRTT   = 7/8 SRTT + 1/8 R
+ *   RTO = SRTT + 4 RTTVAR, clamped to [minRto, maxRto]
+ *
+ * Each timeout doubles the RTO (exponential backoff).  Following Karn's rule,
+ * the sender must not sample packets that have been retransmitted, as their
+ * ACK cannot be matched to a transmission.  Under sustained loss almost every
+ * ACK is for a retransmitted packet, so (as Linux does) the backoff also ends
+ * when an ACK acknowledges new data, without taking a sample from it.
+ *
+ * An estimator created with fixed() still measures SRTT and RTTVAR but
+ * always returns the same RTO, which is how the senders used to behave.
+ */
+public class RttEstimator {
+
+    /** The sender's timeout before the RTO was measured, also the first RTO before any sample. */
+    public static final double DEFAULT_INITIAL_RTO = 1000.0;
+    public static final double DEFAULT_MIN_RTO = 1.0;
+    public static final double DEFAULT_MAX_RTO = 1000.0;
+
+    private final boolean adaptive;
+    private final double minRto;
+    private final double maxRto;
+    private double srtt;
+    private double rttvar;
+    private double rto;
+    private int samples;
+    private int backoffs;
+
+    public RttEstimator() {
+        this(DEFAULT_INITIAL_RTO, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+    }
+
+    public RttEstimator(double initialRto, double minRto, double maxRto) {
+        this(true, initialRto, minRto, maxRto);
+    }
+
+    private RttEstimator(boolean adaptive, double initialRto, double minRto, double maxRto) {
+        if (minRto <= 0 || maxRto < minRto) {
+            throw new IllegalArgumentException("invalid RTO bounds [" + minRto + ", " + maxRto + "]");
+        }
+        this.adaptive = adaptive;
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.rto = initialRto;
+    }
+
+    /**
+     * @return an estimator whose RTO is always timeout.
+     */
+    public static RttEstimator fixed(double timeout) {
+        return new RttEstimator(false, timeout, timeout, timeout);
+    }
+
+    /**
+     * Add a round trip time measured from a packet that was sent exactly once.
+     */
+    public void sample(double rtt) {
+        if (samples == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        samples++;
+        if (adaptive) {
+            rto = clamp(srtt + 4 * rttvar);
+        }
+    }
+
+    /**
+     * The retransmission timer expired: double the RTO.
+     */
+    public void backoff() {
+        if (!adaptive) {
+            return;
+        }
+        backoffs++;
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * An ACK acknowledged new data: drop any backoff and return to the estimated RTO.
+     */
+    public void resetBackoff() {
+        if (adaptive && samples > 0) {
+            rto = clamp(srtt + 4 * rttvar);
+        }
+    }
+
+    private double clamp(double value) {
+        return Math.max(minRto, Math.min(maxRto, value));
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the current retransmission timeout.
+     */
+    public double getRto() {
+        return rto;
+    }
+
+    /**
+     * @return the smoothed RTT, or NaN before the first sample.
+     */
+    public double getSrtt() {
+        return samples == 0 ? Double.NaN : srtt;
+    }
+
+    /**
+     * @return the RTT variation, or NaN before the first sample.
+     */
+    public double getRttvar() {
+        return samples == 0 ? Double.NaN : rttvar;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public int getBackoffs() {
+        return backoffs;
+    }
+}
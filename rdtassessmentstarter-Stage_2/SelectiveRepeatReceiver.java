@@ -0,0 +1,112 @@
+/*
+ * Selective Repeat receiver. Packets within the receive window are ACKed individually and buffered when they
+ * arrive out of order; a bitmap tracks which slots hold data. Data is passed to the application layer in order
+ * as soon as the packet at the base of the window is present. The window size must match the sender's.
+ */
+public class SelectiveRepeatReceiver extends TransportLayer implements Windowed {
+
+    private int rcvBase;        // next sequence number to deliver
+    private int windowSize;
+
+    // data of buffered packets rcvBase..rcvBase+windowSize-1 at index seq & windowMask, the length is a power of two
+    private byte[][] buffer;
+    private long[] received;    // bitmap, bit (seq & windowMask) is set when seq is buffered
+    private int windowMask;
+
+    public SelectiveRepeatReceiver(String name, NetworkSimulator simulator) {
+        super(name, simulator);
+        windowSize = 2;
+        buffer = new byte[2][];
+        received = new long[1];
+        windowMask = 1;
+    }
+
+    @Override
+    public void init() {
+        log(TraceEvent.LAYER_INIT);
+    }
+
+    @Override
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @Override
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        if (windowSize > buffer.length) {
+            int capacity = Integer.highestOneBit(windowSize - 1) << 1;
+            byte[][] grownBuffer = new byte[capacity][];
+            long[] grownReceived = new long[(capacity + 63) / 64];
+            for (int seq = rcvBase; seq < rcvBase + buffer.length; seq++) {
+                if (isReceived(seq)) {
+                    int to = seq & (capacity - 1);
+                    grownBuffer[to] = buffer[seq & windowMask];
+                    grownReceived[to >>> 6] |= 1L << to;
+                }
+            }
+            buffer = grownBuffer;
+            received = grownReceived;
+            windowMask = capacity - 1;
+        }
+    }
+
+    @Override
+    public void rdt_send(byte[] data) {
+    }
+
+    private boolean isReceived(int seq) {
+        int i = seq & windowMask;
+        return (received[i >>> 6] & (1L << i)) != 0;
+    }
+
+    @Override
+    public void rdt_receive(TransportLayerPacket pkt) {
+        log(TraceEvent.RECEIVED, pkt);
+
+        if (isCorrupt(pkt)) {
+            log(TraceEvent.CORRUPT_IGNORED, pkt); // the sender's timer will recover it
+            return;
+        }
+
+        int seq = pkt.getSeqnum();
+        if (seq >= rcvBase && seq < rcvBase + windowSize) {
+            sendAck(seq);
+            if (!isReceived(seq)) {
+                int i = seq & windowMask;
+                buffer[i] = pkt.getData();
+                received[i >>> 6] |= 1L << i;
+                if (seq != rcvBase) {
+                    log(TraceEvent.SR_BUFFERED, pkt);
+                }
+            } else {
+                simulator.getMetrics().duplicate();
+            }
+            // deliver everything that is now in order
+            while (isReceived(rcvBase)) {
+                int i = rcvBase & windowMask;
+                simulator.sendToApplicationLayer(this, buffer[i]);
+                buffer[i] = null;
+                received[i >>> 6] &= ~(1L << i);
+                rcvBase++;
+            }
+        } else if (seq >= rcvBase - windowSize && seq < rcvBase) {
+            // our ACK was lost or corrupted, the sender is still waiting for it
+            log(TraceEvent.SR_DUPLICATE, pkt);
+            simulator.getMetrics().duplicate();
+            sendAck(seq);
+        } else {
+            log(TraceEvent.SR_OUTSIDE_WINDOW, pkt);
+        }
+    }
+
+    private void sendAck(int seq) {
+        TransportLayerPacket ack = new TransportLayerPacket(seq, seq + 1, TransportLayerPacket.NO_DATA, simulator.getIntegrity());
+        log(TraceEvent.DELIVER_ACK, ack);
+        simulator.sendToNetworkLayer(this, ack);
+    }
+
+    @Override
+    public void timerInterrupt() {
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayDeque;
+
+/*
+ * Selective Repeat sender. Every packet in the window has its own retransmission timer (tagged with its sequence
+ * number) and is only retransmitted when that timer expires. ACKs acknowledge a single packet; the window slides
+ * past every packet at its base that has been ACKed. Works with SelectiveRepeatReceiver. Timeouts come from an
+ * RttEstimator sampled from packets that were sent once; each timeout backs off the RTO for all packets.
+ */
+public class SelectiveRepeatSender extends TransportLayer implements Windowed, Retransmitting, Labelling {
+
+    private int sendBase;       // oldest unACKed sequence number
+    private int nextSeqNum;     // sequence number of next packet to be sent
+    private int windowSize;
+    private RttEstimator rtt;
+    private int numSent; //number of packets sent - used to label packets for testing
+    private boolean labelPackets = true; // replace the data of each packet with "Packet <numSent>" for testing
+
+    private ArrayDeque<byte[]> queue;
+
+    // packets sendBase..nextSeqNum-1 live at index seq & windowMask, the length is a power of two
+    private TransportLayerPacket[] window;
+    private long[] timers;  // timer handle of each packet in the window
+    private double[] sentAt; // send time of each packet in the window, NaN once retransmitted (Karn's rule)
+    private long[] acked;   // bitmap, bit (seq & windowMask) is set once seq has been ACKed
+    private int windowMask;
+
+    public SelectiveRepeatSender(String name, NetworkSimulator simulator) {
+        super(name, simulator);
+        queue = new ArrayDeque<>();
+        windowSize = 2;
+        rtt = new RttEstimator();
+        window = new TransportLayerPacket[2];
+        timers = new long[2];
+        sentAt = new double[2];
+        acked = new long[1];
+        windowMask = 1;
+    }
+
+    @Override
+    public void init() {
+        log(TraceEvent.LAYER_INIT);
+    }
+
+    @Override
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /*
+     * Sets the window size, the window arrays grow to the next power of two if needed (packets in flight are kept).
+     */
+    @Override
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+        if (windowSize > window.length) {
+            int capacity = Integer.highestOneBit(windowSize - 1) << 1;
+            TransportLayerPacket[] grownWindow = new TransportLayerPacket[capacity];
+            long[] grownTimers = new long[capacity];
+            double[] grownSentAt = new double[capacity];
+            long[] grownAcked = new long[(capacity + 63) / 64];
+            for (int seq = sendBase; seq < nextSeqNum; seq++) {
+                int from = seq & windowMask;
+                int to = seq & (capacity - 1);
+                grownWindow[to] = window[from];
+                grownTimers[to] = timers[from];
+                grownSentAt[to] = sentAt[from];
+                if (isAcked(seq)) {
+                    grownAcked[to >>> 6] |= 1L << to;
+                }
+            }
+            window = grownWindow;
+            timers = grownTimers;
+            sentAt = grownSentAt;
+            acked = grownAcked;
+            windowMask = capacity - 1;
+        }
+    }
+
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    @Override
+    public void setRttEstimator(RttEstimator rtt) {
+        this.rtt = rtt;
+    }
+
+    /*
+     * The current retransmission timeout.
+     */
+    public double getRto() {
+        return rtt.getRto();
+    }
+
+    @Override
+    public void setLabelPackets(boolean labelPackets) {
+        this.labelPackets = labelPackets;
+    }
+
+    @Override
+    public void rdt_send(byte[] data) {
+        if (nextSeqNum - sendBase < windowSize && queue.isEmpty()) {
+            sendData(data);
+        } else {
+            log(TraceEvent.SEND_QUEUED, data);
+            queue.add(data);
+        }
+    }
+
+    /*
+     * Sends data as the next packet and starts its timer. The caller checks there is room in the window.
+     */
+    private void sendData(byte[] data) {
+        numSent++; // only used for testing
+        if (labelPackets) {
+            data = ("Packet " + numSent).getBytes(); // only used for testing
+        }
+        int i = nextSeqNum & windowMask;
+        TransportLayerPacket sendPacket = new TransportLayerPacket(nextSeqNum, nextSeqNum, data, simulator.getIntegrity());
+        window[i] = sendPacket;
+        acked[i >>> 6] &= ~(1L << i);
+
+        log(TraceEvent.SENDING, sendPacket);
+        simulator.sendToNetworkLayer(this, sendPacket);
+        sentAt[i] = simulator.getTime();
+        timers[i] = simulator.startTimer(this, rtt.getRto(), nextSeqNum);
+        nextSeqNum++;
+    }
+
+    private boolean isAcked(int seq) {
+        int i = seq & windowMask;
+        return (acked[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /*
+     * Handles ACKs from the receiver: marks the ACKed packet, stops its timer and slides the window past ACKed
+     * packets at its base.
+     */
+    @Override
+    public void rdt_receive(TransportLayerPacket pkt) {
+        log(TraceEvent.ACK_RECEIVED, pkt);
+
+        if (isCorrupt(pkt)) {
+            log(TraceEvent.ACK_CORRUPT, pkt);
+            return;
+        }
+        int seq = pkt.getSeqnum();
+        if (seq < sendBase || seq >= nextSeqNum || isAcked(seq)) {
+            log(TraceEvent.ACK_INVALID, pkt);
+            return;
+        }
+
+        log(TraceEvent.ACK_CORRECT, pkt);
+        int i = seq & windowMask;
+        acked[i >>> 6] |= 1L << i;
+        simulator.cancelTimer(timers[i]);
+        if (!Double.isNaN(sentAt[i])) {
+            rtt.sample(simulator.getTime() - sentAt[i]);
+        } else {
+            rtt.resetBackoff();
+        }
+
+        while (sendBase < nextSeqNum && isAcked(sendBase)) {
+            log(TraceEvent.ACK_REMOVE, pkt, sendBase);
+            window[sendBase & windowMask] = null;
+            sendBase++;
+        }
+
+        while (nextSeqNum - sendBase < windowSize && !queue.isEmpty()) {
+            log(TraceEvent.TAKE_FROM_QUEUE);
+            sendData(queue.poll());
+        }
+    }
+
+    /*
+     * The retransmission timer of packet tag expired.
+     */
+    @Override
+    public void timerInterrupt(int tag) {
+        if (tag < sendBase || tag >= nextSeqNum || isAcked(tag)) {
+            return; // already ACKed, the timer lost a race with the ACK
+        }
+        int i = tag & windowMask;
+        log(TraceEvent.SR_TIMEOUT, window[i]);
+        simulator.sendToNetworkLayer(this, window[i]);
+        sentAt[i] = Double.NaN;
+        simulator.getMetrics().retransmission();
+        log(TraceEvent.RESEND, tag + 1);
+        rtt.backoff();
+        timers[i] = simulator.startTimer(this, rtt.getRto(), tag);
+    }
+
+    @Override
+    public void timerInterrupt() {
+    }
+}
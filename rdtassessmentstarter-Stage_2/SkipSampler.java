@@ -0,0 +1,60 @@
+import java.util.SplittableRandom;
+
+/**
+ * Decides which packets of a stream an independent event of fixed
+ * probability hits, by skipping ahead: the number of packets before the next
+ * hit is geometric, so it is drawn once per hit (by inversion, one random
+ * number and a logarithm) rather than once per packet.  At a probability
+ * of 0.001 that is one draw per thousand packets, and a packet costs a
+ * decrement whatever the packet rate.
+ */
+class SkipSampler {
+
+    private final double probability;
+    private final double logMiss;   // log(1 - probability)
+    private long skip = -1;         // packets to pass before the next hit, -1 to draw it
+
+    SkipSampler(double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("a probability must be between 0 and 1");
+        }
+        this.probability = probability;
+        this.logMiss = Math.log1p(-probability);
+    }
+
+    double getProbability() {
+        return probability;
+    }
+
+    /**
+     * @return true if the next packet is hit.
+     */
+    boolean next(SplittableRandom random) {
+        if (skip < 0) {
+            skip = gap(random);
+        }
+        if (skip == 0) {
+            skip = -1;
+            return true;
+        }
+        skip--;
+        return false;
+    }
+
+    /**
+     * @return the number of packets missed before the next hit, Long.MAX_VALUE for never.
+     */
+    long gap(SplittableRandom random) {
+        if (probability >= 1) {
+            return 0;
+        }
+        if (probability <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.floor(Math.log(1 - random.nextDouble()) / logMiss);  // saturates at Long.MAX_VALUE
+    }
+
+    void reset() {
+        skip = -1;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.NumberFormat;
+import java.util.Arrays;
+
+/**
+ * Renders binary trace records written by Tracer as the text the console
+ * output of the simulator shows.
+ *
+ * A trace file is the bytes "RDTTRACE" followed by records of the form
+ *
+ *   short  event ordinal (TraceEvent)
+ *   double simulation time
+ *   int    endpoint id
+ *   int    argument
+ *   int    seqnum, acknum, chksum (when the record has a packet)
+ *   byte   1 if the record has a packet
+ *   int    data length, followed by that many data bytes
+ *
+ * Usage: java TraceDecoder trace.bin
+ */
+public class TraceDecoder {
+
+    static final int HEADER_SIZE = 2 + 8 + 4 + 4 + 12 + 1 + 4;
+
+    private String[] names = new String[2];
+    private final NumberFormat queueTime = NumberFormat.getInstance();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("usage: java TraceDecoder <trace file>");
+            return;
+        }
+        new TraceDecoder().decode(Paths.get(args[0]), System.out);
+    }
+
+    /**
+     * Decode a whole trace file.
+     */
+    public void decode(Path file, PrintStream out) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            decode(in, out);
+        }
+    }
+
+    public void decode(InputStream input, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        byte[] magic = new byte[Tracer.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, Tracer.MAGIC)) {
+            throw new IOException("not a trace file");
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 256);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            record.clear();
+            try {
+                in.readFully(record.array(), 0, HEADER_SIZE);
+            } catch (EOFException e) {
+                return;
+            }
+            int length = record.getInt(HEADER_SIZE - 4);
+            if (record.capacity() < HEADER_SIZE + length) {
+                ByteBuffer bigger = ByteBuffer.allocate(HEADER_SIZE + length);
+                bigger.put(record.array(), 0, HEADER_SIZE);
+                record = bigger;
+            }
+            in.readFully(record.array(), HEADER_SIZE, length);
+            record.position(0).limit(HEADER_SIZE + length);
+            line.setLength(0);
+            if (decode(record, line)) {
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Render one record.
+     * @param record the record, from position to limit.
+     * @param out where the text is appended.
+     * @return false if the record produces no output.
+     */
+    public boolean decode(ByteBuffer record, StringBuilder out) {
+        TraceEvent event = TraceEvent.of(record.getShort());
+        double time = record.getDouble();
+        int endpoint = record.getInt();
+        int arg = record.getInt();
+        int seq = record.getInt();
+        int ack = record.getInt();
+        int chksum = record.getInt();
+        boolean hasPacket = record.get() != 0;
+        int length = record.getInt();
+        int dataOffset = record.position();
+        String data = new String(record.array(), dataOffset, length);
+
+        if (event == TraceEvent.ENDPOINT) {
+            if (endpoint >= names.length) {
+                names = Arrays.copyOf(names, Math.max(endpoint + 1, names.length * 2));
+            }
+            names[endpoint] = data;
+            return false;
+        }
+
+        String template = event.template;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c != '%' || i + 1 == template.length()) {
+                out.append(c);
+                continue;
+            }
+            switch (template.charAt(++i)) {
+                case 'P':
+                    out.append("[Data: ").append(data).append("; Seq: ").append(seq).append("; Ack: ").append(ack).append(']');
+                    break;
+                case 'p':
+                case 'q':
+                    if (hasPacket) {
+                        TransportLayerPacket.format(out, seq, ack, chksum, data);
+                    } else {
+                        out.append(template.charAt(i) == 'q' ? "[no data])" : "[no data]");
+                    }
+                    break;
+                case 'd':
+                    out.append(data);
+                    break;
+                case 'n':
+                    out.append(endpoint >= 0 && endpoint < names.length && names[endpoint] != null ? names[endpoint] : "#" + endpoint);
+                    break;
+                case 't':
+                    out.append(String.format("%.2f", time));
+                    break;
+                case 'T':
+                    out.append(queueTime.format(time));
+                    break;
+                case 'a':
+                    out.append(arg);
+                    break;
+                case 'e':
+                    out.append(eventTypeToString(arg));
+                    break;
+                default:
+                    out.append(c).append(template.charAt(i));
+            }
+        }
+        return true;
+    }
+
+    private static String eventTypeToString(int type) {
+        switch (type) {
+            case EventQueue.TIMER_INTERRUPT:
+                return "TIMER_INTERRUPT";
+            case EventQueue.FROM_LAYER5:
+                return "FROM_LAYER5";
+            case EventQueue.FROM_LAYER3:
+                return "FROM_LAYER3";
+            default:
+                return "";
+        }
+    }
+}
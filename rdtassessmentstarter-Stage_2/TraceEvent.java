@@ -0,0 +1,89 @@
+/**
+ * The messages the simulator and transport layers can trace.  A trace record
+ * only holds the event ordinal and its raw fields (time, endpoint, packet,
+ * argument), the text is produced from the template when the record is
+ * decoded.  Template fields:
+ *
+ *   %P  packet prefix "[Data: ...; Seq: ...; Ack: ...]"
+ *   %p  packet in TransportLayerPacket.toString() form, or "[no data]"
+ *   %q  as %p, but "[no data])" without a packet, as the event queue dump always printed it
+ *   %d  record data as text
+ *   %n  endpoint name
+ *   %t  simulation time
+ *   %T  simulation time in the default NumberFormat, as in the event queue dump
+ *   %a  integer argument
+ *   %e  integer argument as an event queue type
+ */
+public enum TraceEvent {
+
+    ENDPOINT(Tracer.WARN, null),
+    TEXT(Tracer.WARN, "%d"),
+
+    // transport layers
+    LAYER_INIT(Tracer.INFO, "Transport layer with name: \"%n\" has been initialised"),
+    SEND_QUEUED(Tracer.INFO, "────> New send request added to queue (%d) - sender in Stop state."),
+    SEND_FROM_QUEUE(Tracer.INFO, "Packet sent from queue"),
+    TAKE_FROM_QUEUE(Tracer.INFO, "taking packet from queue"),
+    SENDING(Tracer.INFO, "%P Sending Packet from Sender."),
+    START_TIMER(Tracer.INFO, "└──START TIMER"),
+    RESTART_TIMER(Tracer.INFO, "└──START TIMER FOR MOVED UP WINDOW"),
+    STOP_TIMER_EMPTY(Tracer.INFO, "└──STOP TIMER no packets in window "),
+    ACK_RECEIVED(Tracer.INFO, "%P ACK Received."),
+    ACK_CORRUPT(Tracer.INFO, "%P Received packet is corrupt."),
+    ACK_CORRECT(Tracer.INFO, "%P └── ACK is correct.\n"),
+    ACK_REMOVE(Tracer.INFO, "%P └── Removing packet with sequence number:%a"),
+    ACK_INVALID(Tracer.INFO, "%P └── Invalid ACK."),
+    ACK_DUPLICATE(Tracer.INFO, "%P └── Duplicate ACK."),
+    TIMEOUT(Tracer.INFO, "%P (Timer Interrupt! Retransmitting all packets in window.)"),
+    FAST_RETRANSMIT(Tracer.INFO, "%P (Third duplicate ACK! Retransmitting from this packet.)"),
+    RESEND(Tracer.INFO, "resending packet %a"),
+    RECEIVED(Tracer.INFO, "%P Packet Received by Receiver."),
+    DELIVER_ACK(Tracer.INFO, "%P └── Packet O.K. Returning packet to sender with ACK set."),
+    OUT_OF_ORDER_REACK(Tracer.INFO, "%P └── Packet is out of order. Retransmitting ACK for last inorder packet."),
+    OUT_OF_ORDER_NO_ACK(Tracer.INFO, "%P └──Packet is out of order. No packet to retransmit."),
+    CORRUPT_REACK(Tracer.INFO, "%P └──Packet is corrupted. Retransmitting ACK for last inorder packet."),
+    CORRUPT_NO_ACK(Tracer.INFO, "%P └──Packet is corrupted. No packet to retransmit."),
+    DELAYED_ACK_TIMEOUT(Tracer.INFO, "(Delayed ACK timer expired! Acknowledging held back packets.)"),
+    SR_TIMEOUT(Tracer.INFO, "%P (Timer Interrupt! Retransmitting packet.)"),
+    SR_BUFFERED(Tracer.INFO, "%P └── Packet is out of order. Buffered and ACKed."),
+    SR_DUPLICATE(Tracer.INFO, "%P └── Packet already received. Retransmitting its ACK."),
+    SR_OUTSIDE_WINDOW(Tracer.INFO, "%P └── Packet is outside the receive window. Ignored."),
+    CORRUPT_IGNORED(Tracer.INFO, "%P └── Packet is corrupted. Ignored."),
+
+    // simulator
+    TIMER_STOP_MISSING(Tracer.WARN, "Warning: unable to cancel timer for %n as it doesn't seem to exist."),
+    TIMER_EXISTS(Tracer.WARN, "Attempting to start timer for %n when one already exists."),
+    NET_LOSS(Tracer.NETWORK, "        (%t) NetworkSimulator: %n losing packet: (%p)"),
+    NET_DROP(Tracer.NETWORK, "        (%t) NetworkSimulator: %n channel dropping packet: (%p)"),
+    NET_REORDER(Tracer.NETWORK, "        (%t) NetworkSimulator: %n holding back packet: (%p)"),
+    NET_DUPLICATE(Tracer.NETWORK, "        (%t) NetworkSimulator: %n duplicating packet: (%p)"),
+    NET_CORRUPT_PAYLOAD(Tracer.NETWORK, "        (%t) NetworkSimulator: %n corrupting packet payload: (%p)"),
+    NET_CORRUPT_SEQNUM(Tracer.NETWORK, "        (%t) NetworkSimulator: %n corrupting packet seqnum: (%p)"),
+    NET_CORRUPT_ACKNUM(Tracer.NETWORK, "        (%t) NetworkSimulator: %n corrupting packet acknum: (%p)"),
+    APP_DELIVER(Tracer.NETWORK, "        (%t) NetworkSimulator.sendToApplicationLayer(%n, %d)"),
+    NET_SEND(Tracer.PACKETS, "        (%t) NetworkSimulator.sendToNetworkLayer(%n, %p)"),
+    SIM_START_TIMER(Tracer.EVENTS, "        (%t) NetworkSimulator: START TIMER."),
+    SIM_STOP_TIMER(Tracer.EVENTS, "        (%t) NetworkSimulator: STOP TIMER."),
+    SIM_ARRIVAL(Tracer.EVENTS, "        (%t) NetworkSimulator: generateNextArrival()"),
+    QUEUE_BEGIN(Tracer.EVENTS, "        Event Queue {"),
+    QUEUE_ENTRY(Tracer.EVENTS, "                EVENT(time=%T, type=%e, pkt=%q"),
+    QUEUE_END(Tracer.EVENTS, "        }");
+
+    private static final TraceEvent[] VALUES = values();
+
+    final int level;
+    final String template;
+
+    TraceEvent(int level, String template) {
+        this.level = level;
+        this.template = template;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    static TraceEvent of(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled tracing for the simulator and transport layers.
+ *
+ * Every trace call names a TraceEvent and passes its raw fields; if the event's
+ * level is above the tracer's level the call returns straight away, so a
+ * disabled event costs one comparison and builds no strings.  Enabled events
+ * are encoded as a compact binary record (see TraceDecoder for the layout)
+ * which is either rendered to text immediately (console tracers) or copied into
+ * a ring buffer that a background thread writes to a file (file tracers).
+ * TraceDecoder turns such a file back into the text a console tracer prints.
+ */
+public class Tracer implements AutoCloseable {
+
+    public static final int OFF = 0;
+    public static final int WARN = 1;     // simulator warnings
+    public static final int INFO = 2;     // transport layer messages
+    public static final int NETWORK = 3;  // loss, corruption and delivery (debugLevel 1)
+    public static final int PACKETS = 4;  // every packet sent (debugLevel 2)
+    public static final int EVENTS = 5;   // timers, arrivals and the event queue (debugLevel 3)
+
+    static final byte[] MAGIC = {'R', 'D', 'T', 'T', 'R', 'A', 'C', 'E'};
+
+    private static final int DEFAULT_RING_SIZE = 1 << 22;
+
+    private final int level;
+    private ByteBuffer record;
+
+    // console output
+    private final PrintStream console;
+    private final TraceDecoder decoder;
+    private final StringBuilder line;
+
+    // file output: single producer / single consumer ring buffer
+    private final byte[] ring;
+    private final int mask;
+    private final FileChannel channel;
+    private final Thread flusher;
+    private long head;
+    private volatile long published;
+    private volatile long consumed;
+    private volatile boolean closed;
+    private volatile boolean failed;    // the flusher stopped on failure, records are discarded
+    private IOException failure;
+
+    private Tracer(int level, PrintStream console, FileChannel channel, int ringSize) {
+        this.level = level;
+        this.record = ByteBuffer.allocate(TraceDecoder.HEADER_SIZE + 256);
+        this.console = console;
+        this.decoder = (console != null) ? new TraceDecoder() : null;
+        this.line = new StringBuilder();
+        this.channel = channel;
+        if (channel != null) {
+            this.ring = new byte[ringSize];
+            this.mask = ringSize - 1;
+            this.flusher = new Thread(this::flushLoop, "trace-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.ring = null;
+            this.mask = 0;
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * A tracer that records nothing.
+     */
+    public static Tracer off() {
+        return new Tracer(OFF, null, null, 0);
+    }
+
+    /**
+     * A tracer that prints events up to level to System.out as they happen.
+     */
+    public static Tracer console(int level) {
+        return new Tracer(level, System.out, null, 0);
+    }
+
+    /**
+     * A tracer that writes events up to level to file in the binary trace
+     * format.  The file is written by a background thread; call close() to
+     * write out the remaining records.
+     */
+    public static Tracer toFile(Path file, int level) throws IOException {
+        return toFile(file, level, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * @param ringSize size of the ring buffer in bytes, a power of two.
+     */
+    public static Tracer toFile(Path file, int level, int ringSize) throws IOException {
+        if (Integer.bitCount(ringSize) != 1 || ringSize < 1024) {
+            throw new IllegalArgumentException("ring size must be a power of two >= 1024: " + ringSize);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        channel.write(ByteBuffer.wrap(MAGIC));
+        return new Tracer(level, null, channel, ringSize);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= this.level;
+    }
+
+    public void event(TraceEvent event, double time, int endpoint) {
+        if (event.level <= level) {
+            write(event, time, endpoint, 0, null, null);
+        }
+    }
+
+    public void event(TraceEvent event, double time, int endpoint, int arg) {
+        if (event.level <= level) {
+            write(event, time, endpoint, arg, null, null);
+        }
+    }
+
+    public void packet(TraceEvent event, double time, int endpoint, TransportLayerPacket pkt) {
+        if (event.level <= level) {
+            write(event, time, endpoint, 0, pkt, null);
+        }
+    }
+
+    public void packet(TraceEvent event, double time, int endpoint, TransportLayerPacket pkt, int arg) {
+        if (event.level <= level) {
+            write(event, time, endpoint, arg, pkt, null);
+        }
+    }
+
+    public void data(TraceEvent event, double time, int endpoint, byte[] data) {
+        if (event.level <= level) {
+            write(event, time, endpoint, 0, null, data);
+        }
+    }
+
+    /**
+     * Trace a free text message at the given level.  Only for rare messages,
+     * the caller builds the text.
+     */
+    public void text(int level, double time, String text) {
+        if (level <= this.level) {
+            write(TraceEvent.TEXT, time, -1, 0, null, text.getBytes());
+        }
+    }
+
+    /**
+     * Record the name of an endpoint id, used when rendering later records.
+     */
+    public void endpoint(int id, String name) {
+        if (TraceEvent.ENDPOINT.level <= level) {
+            write(TraceEvent.ENDPOINT, 0.0, id, 0, null, name.getBytes());
+        }
+    }
+
+    private void write(TraceEvent event, double time, int endpoint, int arg, TransportLayerPacket pkt, byte[] data) {
+        if (pkt != null) {
+            data = pkt.getData();
+        }
+        int length = (data != null) ? data.length : 0;
+        if (record.capacity() < TraceDecoder.HEADER_SIZE + length) {
+            record = ByteBuffer.allocate(TraceDecoder.HEADER_SIZE + length);
+        }
+        ByteBuffer r = record;
+        r.clear();
+        r.putShort((short) event.ordinal());
+        r.putDouble(time);
+        r.putInt(endpoint);
+        r.putInt(arg);
+        r.putInt(pkt != null ? pkt.getSeqnum() : 0);
+        r.putInt(pkt != null ? pkt.getAcknum() : 0);
+        r.putInt(pkt != null ? pkt.getChksum() : 0);
+        r.put((byte) (pkt != null ? 1 : 0));
+        r.putInt(length);
+        if (length > 0) {
+            r.put(data, 0, length);
+        }
+        r.flip();
+
+        if (console != null) {
+            line.setLength(0);
+            if (decoder.decode(r, line)) {
+                console.println(line);
+            }
+        } else {
+            publish(r.array(), r.limit());
+        }
+    }
+
+    /*
+     * Copies a record into the ring, in parts of at most half the ring when it is larger, each published as soon
+     * as there is room for it, so records of any size are written whole.
+     */
+    private void publish(byte[] bytes, int length) {
+        for (int start = 0; start < length; ) {
+            int part = Math.min(length - start, ring.length / 2);
+            while (head + part - consumed > ring.length) {
+                if (closed || failed) {
+                    return;
+                }
+                Thread.onSpinWait();
+            }
+            int offset = (int) (head & mask);
+            int first = Math.min(part, ring.length - offset);
+            System.arraycopy(bytes, start, ring, offset, first);
+            System.arraycopy(bytes, start + first, ring, 0, part - first);
+            head += part;
+            published = head;
+            start += part;
+        }
+    }
+
+    private void flushLoop() {
+        long position = 0;
+        while (true) {
+            long available = published;
+            if (available == position) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(50_000);
+                continue;
+            }
+            try {
+                while (position < available) {
+                    int offset = (int) (position & mask);
+                    int length = (int) Math.min(available - position, ring.length - offset);
+                    ByteBuffer chunk = ByteBuffer.wrap(ring, offset, length);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    position += length;
+                }
+            } catch (IOException e) {
+                failure = e;
+                failed = true;
+                return;
+            }
+            consumed = position;
+        }
+    }
+
+    /**
+     * Wait until every record traced so far has been written out.
+     */
+    public void flush() throws IOException {
+        if (ring != null) {
+            while (consumed != published && !failed) {
+                LockSupport.parkNanos(50_000);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } else if (console != null) {
+            console.flush();
+        }
+    }
+
+    /**
+     * Write out the remaining records and close the file, which is closed
+     * even if writing failed.
+     * @throws IOException the first write or close failure.
+     */
+    @Override
+    public void close() throws IOException {
+        if (ring == null || closed) {
+            return;
+        }
+        IOException error = null;
+        try {
+            flush();
+        } catch (IOException e) {
+            error = e;
+        }
+        closed = true;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            } else {
+                error.addSuppressed(e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -2,6 +2,7 @@ public abstract class TransportLayer {
 
     String name;
     NetworkSimulator simulator;
+    private int endpointId = -1;
 
     public TransportLayer(String name, NetworkSimulator simulator) {
         this.name = name;
@@ -16,31 +17,66 @@ public abstract class TransportLayer {
 
     public abstract void timerInterrupt();
 
+    /*
+     * Called when a timer started with NetworkSimulator.startTimer expires. The tag is the one given to
+     * startTimer(t, increment, tag), or NetworkSimulator.DEFAULT_TIMER for the single legacy timer.
+     * Layers that only use the legacy timer do not need to override this.
+     */
+    public void timerInterrupt(int tag) {
+        timerInterrupt();
+    }
+
     public String getName() {
         return this.name;
     }
 
-    protected boolean isCorrupt(TransportLayerPacket pkt) {
-        int receivedCheckSum = pkt.getChksum();
-        int calculatedCheckSum = pkt.getAcknum() + pkt.getSeqnum();
+    /*
+     * The id the simulator routes events to this layer by, assigned by NetworkSimulator.setSender/setReceiver.
+     */
+    public int getEndpointId() {
+        return this.endpointId;
+    }
 
-        byte[] data = pkt.getData();
-        for (byte a : data) {
-            calculatedCheckSum += a;
-        }
+    void setEndpointId(int endpointId) {
+        this.endpointId = endpointId;
+    }
 
-        if (receivedCheckSum + calculatedCheckSum == 65535) {
-            return false;
-        } else {
+    /*
+     * Checks pkt with the simulation's integrity algorithm. A packet the network corrupted that passes the check is
+     * counted as an undetected corruption in the simulator's metrics.
+     */
+    protected boolean isCorrupt(TransportLayerPacket pkt) {
+        if (!simulator.getIntegrity().verify(pkt)) {
             return true;
         }
+        if (pkt.corrupted) {
+            simulator.getMetrics().undetectedCorruption();
+        }
+        return false;
     }
 
     /*
-     * Prints information to the console alongside the current packet's data, seqnum and acknum (for debugging).
+     * Traces an event about pkt; rendered alongside the packet's data, seqnum and acknum (for debugging).
+     * Nothing is built unless the simulator's tracer has the event's level enabled.
      */
-    public void log(TransportLayerPacket pkt, String msg){
-        System.out.println("[Data: " + new String(pkt.getData()) + "; Seq: " + pkt.getSeqnum() + "; Ack: " + pkt.getAcknum() + "] " + msg);
+    public void log(TraceEvent event, TransportLayerPacket pkt) {
+        simulator.getTracer().packet(event, simulator.getTime(), endpointId, pkt);
+    }
+
+    public void log(TraceEvent event, TransportLayerPacket pkt, int arg) {
+        simulator.getTracer().packet(event, simulator.getTime(), endpointId, pkt, arg);
+    }
+
+    public void log(TraceEvent event) {
+        simulator.getTracer().event(event, simulator.getTime(), endpointId);
+    }
+
+    public void log(TraceEvent event, byte[] data) {
+        simulator.getTracer().data(event, simulator.getTime(), endpointId, data);
+    }
+
+    public void log(TraceEvent event, int arg) {
+        simulator.getTracer().event(event, simulator.getTime(), endpointId, arg);
     }
 
 }
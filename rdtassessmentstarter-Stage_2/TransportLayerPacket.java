@@ -1,33 +1,69 @@
 import java.util.Arrays;
 
+/*
+ * A packet's payload is never modified once the packet has been created, so packets share it instead of copying it:
+ * copies of a packet (the simulator's copy of everything it sends, an ACK made from a data packet) and the data
+ * delivered to the application layer are all the same array. The simulator copies the payload only when it
+ * corrupts it (copyOnWrite). Callers must not modify an array after handing it to a packet.
+ *
+ * The checksum is computed with the packet's Integrity algorithm, Integrity.SUM unless another one is given.
+ */
 public class TransportLayerPacket {
 
+    // payload of packets that carry no data, e.g. ACKs
+    public static final byte[] NO_DATA = new byte[0];
+
+    // bytes of seqnum, acknum and checksum on the wire
+    public static final int HEADER_SIZE = 12;
+
     private int seqnum;
     private int acknum;
     private int chksum;
+    private int flowId;     // connection the packet belongs to, set by the simulator like an address, not checksummed
+    private final Integrity integrity;
 
     byte[] data;
+    boolean corrupted;  // set by the simulator when it corrupts the packet, not part of the packet's contents
 
 
     public TransportLayerPacket(TransportLayerPacket pkt) {
-        this.data = Arrays.copyOf(pkt.getData(), pkt.getData().length);
+        this.data = pkt.getData(); // shared, see copyOnWrite
+        this.integrity = pkt.integrity;
         this.seqnum = pkt.getSeqnum();
         this.acknum = pkt.getAcknum();
         this.chksum = pkt.getChksum();
+        this.flowId = pkt.flowId;
     }
 
     public TransportLayerPacket(byte[] data) {
         this.data = data;
+        this.integrity = Integrity.SUM;
         generateChksum();
     }
 
     public TransportLayerPacket(int seqnum, int acknum, byte[] data) {
-        this.data = Arrays.copyOf(data, data.length);
+        this(seqnum, acknum, data, Integrity.SUM);
+    }
+
+    public TransportLayerPacket(int seqnum, int acknum, byte[] data, Integrity integrity) {
+        this.data = data;
+        this.integrity = integrity;
         this.seqnum = seqnum;
         this.acknum = acknum;
         generateChksum();
     }
 
+    /*
+     * A packet as it came off a real network (UdpLoopback), keeping the checksum it carried.
+     */
+    TransportLayerPacket(int seqnum, int acknum, int chksum, byte[] data, Integrity integrity) {
+        this.data = data;
+        this.integrity = integrity;
+        this.seqnum = seqnum;
+        this.acknum = acknum;
+        this.chksum = chksum;
+    }
+
     public void setSeqnum(int seqnum) {
         this.seqnum = seqnum;
     }
@@ -36,10 +72,40 @@ public class TransportLayerPacket {
         this.acknum = acknum;
     }
 
+    /*
+     * The flow (NetworkSimulator.addFlow) of a packet delivered by the simulator, 0 unless there are several flows.
+     */
+    public int getFlowId() {
+        return flowId;
+    }
+
+    public void setFlowId(int flowId) {
+        this.flowId = flowId;
+    }
+
+    /*
+     * The payload, which may be shared with other packets and must not be modified.
+     */
     public byte[] getData() {
         return this.data;
     }
 
+    /*
+     * The size of the packet on the wire: header and payload.
+     */
+    public int getWireSize() {
+        return HEADER_SIZE + data.length;
+    }
+
+    /*
+     * Gives this packet a private copy of its payload and returns it for modification, the packets that shared the
+     * old payload are unaffected.
+     */
+    byte[] copyOnWrite() {
+        data = Arrays.copyOf(data, data.length);
+        return data;
+    }
+
     public int getSeqnum(){
         return this.seqnum;
     }
@@ -52,6 +118,10 @@ public class TransportLayerPacket {
         return chksum;
     }
 
+    public Integrity getIntegrity() {
+        return integrity;
+    }
+
     public void incrementSeqnum(){
         this.seqnum = (this.seqnum + 1);
     }
@@ -60,16 +130,22 @@ public class TransportLayerPacket {
         this.acknum = (this.acknum +1);
     }
 
-    public void generateChksum(){
-        int checksum = seqnum + acknum;
-
-        for (byte a : data) {
-            checksum += a;
-        }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        format(sb, seqnum, acknum, chksum, new String(data));
+        return sb.toString();
+    }
 
-        checksum = ((1 << 16) - 1) ^ checksum; //perform two's complement
+    /*
+     * Appends a packet with the given fields in toString() form, used when decoding traces.
+     */
+    static void format(StringBuilder sb, int seqnum, int acknum, int chksum, String data) {
+        sb.append("seq=").append(seqnum).append(", ack=").append(acknum).append(", chksum=").append(chksum).append(", data=").append(data);
+    }
 
-        this.chksum = checksum;
+    public void generateChksum(){
+        this.chksum = integrity.checksum(seqnum, acknum, data);
     }
 
 }
@@ -1,10 +1,21 @@
 import java.util.ArrayList;
 
+/*
+ * Go-Back-N receiver. By default every in-order packet is ACKed with a copy of itself. In delayed ACK mode
+ * (setDelayedAck) a payload-free cumulative ACK is sent for every Nth in-order packet, or when the ACK timer
+ * expires; out-of-order and corrupt packets are still answered immediately so the sender sees the gap.
+ */
 public class TransportLayerReceiver extends TransportLayer {
 
     public TransportLayerPacket packet; // most recently received inorder uncorrupted packet
     private int expectedSeqnum; //next sequence number expected to be received
 
+    private int ackEvery = 1;   // ACK every Nth in-order packet, 1 is one ACK (a copy of the packet) per packet
+    private double ackDelay;    // longest an in-order packet waits for its ACK in delayed ACK mode
+    private int unacked;        // in-order packets delivered but not ACKed yet
+    private long ackTimer;      // handle of the delayed ACK timer, 0 when it isn't running
+    private int acksSent;
+
     private boolean readyToProcess;
 
     private ArrayList<TransportLayerPacket> queue;
@@ -19,7 +30,7 @@ public class TransportLayerReceiver extends TransportLayer {
 
     @Override
     public void init() {
-        System.out.println("Transport layer with name: \"" + name + "\" has been initialised");
+        log(TraceEvent.LAYER_INIT);
     }
 
 
@@ -27,6 +38,41 @@ public class TransportLayerReceiver extends TransportLayer {
     public void rdt_send(byte[] data) {
     }
 
+    /*
+     * Turns on delayed ACKs: one payload-free cumulative ACK for every ackEvery in-order packets, or after delay
+     * if fewer arrive. ackEvery 1 restores an ACK per packet.
+     */
+    public void setDelayedAck(int ackEvery, double delay) {
+        if (ackEvery < 1 || delay <= 0) {
+            throw new IllegalArgumentException("ackEvery must be at least 1 and delay positive");
+        }
+        this.ackEvery = ackEvery;
+        this.ackDelay = delay;
+    }
+
+    /*
+     * Number of ACKs sent, including re-ACKs.
+     */
+    public int getAcksSent() {
+        return acksSent;
+    }
+
+    /*
+     * Sends a payload-free ACK for everything received in order and stops the delayed ACK timer.
+     */
+    private void sendCumulativeAck() {
+        packet = new TransportLayerPacket(expectedSeqnum - 1, expectedSeqnum, TransportLayerPacket.NO_DATA,
+                simulator.getIntegrity());
+        log(TraceEvent.DELIVER_ACK, packet);
+        simulator.sendToNetworkLayer(this, packet);
+        acksSent++;
+        unacked = 0;
+        if (ackTimer != 0) {
+            simulator.cancelTimer(ackTimer);
+            ackTimer = 0;
+        }
+    }
+
 
 
     /*
@@ -38,13 +84,24 @@ public class TransportLayerReceiver extends TransportLayer {
         if (readyToProcess){
 
                 readyToProcess = false;
-                log(pkt, "Packet Received by Receiver.");
+                log(TraceEvent.RECEIVED, pkt);
 
                 //if packet is not corrupt
                 if(!isCorrupt(pkt)) {
 
                     //if the received packet is the expected packet
-                    if (pkt.getSeqnum() == this.expectedSeqnum) {
+                    if (pkt.getSeqnum() == this.expectedSeqnum && ackEvery > 1) {
+                        simulator.sendToApplicationLayer(this, pkt.getData());
+                        expectedSeqnum++;
+
+                        // hold the ACK back until ackEvery packets are waiting or the timer expires
+                        if (++unacked >= ackEvery) {
+                            sendCumulativeAck();
+                        } else if (ackTimer == 0) {
+                            ackTimer = simulator.startTimer(this, ackDelay, 0);
+                        }
+
+                    } else if (pkt.getSeqnum() == this.expectedSeqnum) {
                         //extract and deliver data
                         byte[] receiveData = pkt.getData();
                         simulator.sendToApplicationLayer(this, receiveData); //send data to application layer
@@ -54,8 +111,9 @@ public class TransportLayerReceiver extends TransportLayer {
                         TransportLayerPacket returnPacket = new TransportLayerPacket(pkt);
                         returnPacket.incrementAcknum();
                         returnPacket.generateChksum();
-                        log(returnPacket, "└── Packet O.K. Returning packet to sender with ACK set.");
+                        log(TraceEvent.DELIVER_ACK, returnPacket);
                         simulator.sendToNetworkLayer(this, returnPacket);
+                        acksSent++;
 
 
                         expectedSeqnum++;
@@ -64,21 +122,33 @@ public class TransportLayerReceiver extends TransportLayer {
                         packet = returnPacket;
 
                     }else {
+                        if (pkt.getSeqnum() < expectedSeqnum) {
+                            simulator.getMetrics().duplicate();
+                        }
                         //resend the latest uncorrupted inorder packet
-                        if(packet != null){
-                            log(pkt, "└── Packet is out of order. Retransmitting ACK for last inorder packet.");
+                        if (unacked > 0) {
+                            // ACK what's held back straight away, the sender has to see the gap
+                            log(TraceEvent.OUT_OF_ORDER_REACK, pkt);
+                            sendCumulativeAck();
+                        } else if(packet != null){
+                            log(TraceEvent.OUT_OF_ORDER_REACK, pkt);
                             simulator.sendToNetworkLayer(this, this.packet);
+                            acksSent++;
                         }else{
-                            log(pkt,"└──Packet is out of order. No packet to retransmit.");
+                            log(TraceEvent.OUT_OF_ORDER_NO_ACK, pkt);
 
                         }
                     }
                 }else{
-                    if(packet != null){
-                        log(pkt,"└──Packet is corrupted. Retransmitting ACK for last inorder packet.");
+                    if (unacked > 0) {
+                        log(TraceEvent.CORRUPT_REACK, pkt);
+                        sendCumulativeAck();
+                    } else if(packet != null){
+                        log(TraceEvent.CORRUPT_REACK, pkt);
                         simulator.sendToNetworkLayer(this, this.packet);
+                        acksSent++;
                     }else{
-                        log(pkt,"└──Packet is corrupted. No packet to retransmit.");
+                        log(TraceEvent.CORRUPT_NO_ACK, pkt);
                     }
                 }
 
@@ -97,7 +167,15 @@ public class TransportLayerReceiver extends TransportLayer {
 
     }
 
+    /*
+     * The delayed ACK timer expired before ackEvery packets arrived.
+     */
     @Override
     public void timerInterrupt() {
+        ackTimer = 0;
+        if (unacked > 0) {
+            log(TraceEvent.DELAYED_ACK_TIMEOUT);
+            sendCumulativeAck();
+        }
     }
 }
\ No newline at end of file
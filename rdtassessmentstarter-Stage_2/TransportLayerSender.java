@@ -1,70 +1,118 @@
-import java.util.*;
+import java.util.ArrayDeque;
+
+/*
+ * Go-Back-N sender. The window is either fixed (windowSize) or, with congestion control on, an AIMD congestion
+ * window driven by ACKs: slow start below ssthresh, additive increase of one packet per window above it, and
+ * multiplicative decrease on a timeout (cwnd back to 1) or a third duplicate ACK (cwnd halved, once per loss
+ * episode). windowSize then only caps the congestion window.
+ *
+ * A third duplicate ACK also triggers a fast retransmit: the receiver discards everything after a gap, so the
+ * sender goes back to sendBase straight away instead of waiting for the timer. As in NewReno, there is no further
+ * fast retransmit until everything sent before the last one (or before a timeout) has been ACKed, the resent
+ * packets arrive as duplicates and their ACKs would retrigger it. Retransmissions always go out in sequence order.
+ * The time from first sending a lost packet until it is ACKed is recorded as recovery latency.
+ */
+public class TransportLayerSender extends TransportLayer implements Windowed, Retransmitting, Labelling {
+
+    static final int MAX_WINDOW = 1 << 16;  // cap on the congestion window
 
-public class TransportLayerSender extends TransportLayer {
-
-    private int currentSeqNum;  // sequence number of last sent packet
-    private int currentAckNum;  // acknum of last sent packet
-    private byte[] currentData; // data contained in last sent packet
     private int nextSeqNum;     // sequence number of next packet to be sent, also acts as the expected acknum
     private TransportLayerPacket packet; // most recently sent packet (REFERENCE, not VALUE)
     private int windowSize;
     private int numSent; //number of packets sent - used to label packets for testing
+    private boolean labelPackets = true; // replace the data of each packet with "Packet <numSent>" for testing
 
     private int expectedAcknum; //expected acknum of the last packet sent
     private int sendBase;
 
-    // false when packet has been sent but no ACK received
-    // true when ACK has been received for packet, or nothing has been sent yet
-    private boolean readyToSend = true;
-
-    private ArrayList<byte[]> queue;
-    private HashMap<Integer, TransportLayerPacket> sentPackets;
+    private ArrayDeque<byte[]> queue;
+
+    // the window: packets sendBase..nextSeqNum-1 live at window[seq & windowMask], the length is a power of two
+    private TransportLayerPacket[] window;
+    private double[] sentAt;    // send time of each packet in the window, NaN once retransmitted (Karn's rule)
+    private double[] firstSentAt; // first send time of each packet in the window
+    private int windowMask;
+
+    private RttEstimator rtt;
+
+    private boolean congestionControl;
+    private double cwnd;        // congestion window in packets, only used with congestion control
+    private double ssthresh;
+    private int dupAcks;        // duplicate ACKs for sendBase seen in a row
+    private int resendNext;     // after a timeout, packets resendNext..nextSeqNum-1 still have to be resent
+    private CwndRecorder cwndRecorder;
+
+    private boolean fastRetransmit = true;
+    private int recover = -1;   // highest sequence number sent when the sender last went back to sendBase
+    private int recoveringSeq = -1; // the packet being recovered, -1 when not recovering
+    private int timeouts;
+    private int fastRetransmits;
+    private int recoveries;
+    private double recoveryTime; // total recovery latency, in simulation time
+    private double recoveryRtts; // total recovery latency, in smoothed RTTs at the time of recovery
+    private int rttRecoveries;   // recoveries with an RTT estimate, the count for recoveryRtts
 
     public TransportLayerSender(String name, NetworkSimulator simulator) {
         super(name, simulator);
-        this.currentSeqNum = 0;
         this.nextSeqNum = 0;
         this.expectedAcknum = 0;
         this.sendBase = 0;
-        sentPackets = new HashMap<>();
-        queue = new ArrayList<>();
+        queue = new ArrayDeque<>();
         windowSize = 2;
         numSent = 0;
+        window = new TransportLayerPacket[2];
+        sentAt = new double[2];
+        firstSentAt = new double[2];
+        windowMask = 1;
+        rtt = new RttEstimator();
+        cwnd = 1;
+        ssthresh = MAX_WINDOW;
     }
 
     @Override
     public void init() {
-        System.out.println("Transport layer with name: \"" + name + "\" has been initialised");
+        log(TraceEvent.LAYER_INIT);
     }
 
     /*
      * Returns the next piece of data to be sent if the queue is populated, otherwise returns null
      */
     private byte[] takeFromQueue(){
-        if(queue.size() > 0) {
-            System.out.println("taking packet from queue");
-            byte nextData[] = queue.get(0);
-            queue.remove(0);
-            return nextData;
+        if(!queue.isEmpty()) {
+            log(TraceEvent.TAKE_FROM_QUEUE);
+            return queue.poll();
         }
         return null;
     }
 
+    /*
+     * True when there's space in the window for another packet
+     */
+    private boolean readyToSend() {
+        return nextSeqNum - sendBase < getEffectiveWindow();
+    }
+
+    /*
+     * The number of packets that may be in flight: the congestion window (capped by windowSize) or windowSize.
+     */
+    public int getEffectiveWindow() {
+        return congestionControl ? Math.min((int) cwnd, windowSize) : windowSize;
+    }
+
     /*
      * Creates a packet using the passed in data and sends it across the network layer
      */
     @Override
     public void rdt_send(byte[] data) {
-        if (readyToSend) {
-            if(queue.size() > 0) {
+        if (readyToSend()) {
+            if(!queue.isEmpty()) {
                 queue.add(data);
-                data = queue.get(0);
-                queue.remove(0);
-                System.out.println("Packet sent from queue");
+                data = queue.poll();
+                log(TraceEvent.SEND_FROM_QUEUE);
             }
             sendData(data);
         } else {
-            System.out.println("────> New send request added to queue (" + new String(data) + ") - sender in Stop state.");
+            log(TraceEvent.SEND_QUEUED, data);
             queue.add(data);
         }
     }
@@ -75,53 +123,207 @@ public class TransportLayerSender extends TransportLayer {
     private void sendData(byte[] data){
 
         //if theres space in the window send the packet
-        if(nextSeqNum < (sendBase + windowSize) ) {
+        if(readyToSend()) {
 
             //reassigned data with packet number for testing
             numSent++; // only used for testing
-            data = ("Packet " + numSent).getBytes(); // only used for testing
+            if (labelPackets) {
+                data = ("Packet " + numSent).getBytes(); // only used for testing
+            }
 
-            TransportLayerPacket sendPacket = new TransportLayerPacket(nextSeqNum, expectedAcknum, data);
+            // the simulator copies what it sends, so the window can hold on to the same packet
+            TransportLayerPacket sendPacket = new TransportLayerPacket(nextSeqNum, expectedAcknum, data, simulator.getIntegrity());
 
-            log(sendPacket, "Sending Packet from Sender.");
+            log(TraceEvent.SENDING, sendPacket);
             this.simulator.sendToNetworkLayer(this, sendPacket);
-            setCurrentPacket(nextSeqNum, expectedAcknum, data);
-            sentPackets.put(nextSeqNum, getCurrentPacket()); //add packet to window
+            window[nextSeqNum & windowMask] = sendPacket; //add packet to window
+            sentAt[nextSeqNum & windowMask] = simulator.getTime();
+            firstSentAt[nextSeqNum & windowMask] = simulator.getTime();
             packet = sendPacket;
 
-
-            if (sentPackets.size() >= windowSize) {
-                readyToSend = false;
-            }
             if (sendBase == nextSeqNum) {
-                simulator.startTimer(this, 1000.0);
-                System.out.println("└──START TIMER");
+                simulator.startTimer(this, rtt.getRto());
+                log(TraceEvent.START_TIMER);
             }
 
             this.nextSeqNum++;
             this.expectedAcknum= nextSeqNum;
+            resendNext = nextSeqNum; // there's nothing left to resend when there's room for new data
 
         }
     }
 
-    private TransportLayerPacket getCurrentPacket() {
-        return new TransportLayerPacket(currentSeqNum, currentAckNum, currentData);
-    }
-
-    private void setCurrentPacket(int seq, int ack, byte[] data){
-        currentSeqNum = seq;
-        currentAckNum = ack;
-        currentData = Arrays.copyOf(data, data.length);
-    }
-
+    @Override
     public int getWindowSize() {
         return windowSize;
     }
 
+    /*
+     * Sets the window size. The window array only grows (to the next power of two, packets in flight are kept) as
+     * far as the effective window, with congestion control it follows cwnd as the window opens.
+     */
+    @Override
     public void setWindowSize(int windowSize) {
         this.windowSize = windowSize;
+        ensureCapacity(getEffectiveWindow());
+    }
+
+    /*
+     * Grows the window arrays so that size packets fit.
+     */
+    private void ensureCapacity(int size) {
+        if (size > window.length) {
+            int capacity = Integer.highestOneBit(size - 1) << 1;
+            TransportLayerPacket[] grown = new TransportLayerPacket[capacity];
+            double[] grownSentAt = new double[capacity];
+            double[] grownFirstSentAt = new double[capacity];
+            for (int seq = sendBase; seq < nextSeqNum; seq++) {
+                grown[seq & (capacity - 1)] = window[seq & windowMask];
+                grownSentAt[seq & (capacity - 1)] = sentAt[seq & windowMask];
+                grownFirstSentAt[seq & (capacity - 1)] = firstSentAt[seq & windowMask];
+            }
+            window = grown;
+            sentAt = grownSentAt;
+            firstSentAt = grownFirstSentAt;
+            windowMask = capacity - 1;
+        }
+    }
+
+    /*
+     * Turns the "Packet <n>" test labels on or off; when off, packets carry the data given to rdt_send.
+     */
+    @Override
+    public void setLabelPackets(boolean labelPackets) {
+        this.labelPackets = labelPackets;
+    }
+
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    @Override
+    public void setRttEstimator(RttEstimator rtt) {
+        this.rtt = rtt;
+    }
+
+    /*
+     * The current retransmission timeout.
+     */
+    public double getRto() {
+        return rtt.getRto();
+    }
+
+    /*
+     * Turns AIMD congestion control on or off. When on, the window starts at one packet in slow start and
+     * windowSize is only an upper bound, e.g. the receiver's buffer.
+     */
+    public void setCongestionControl(boolean congestionControl) {
+        this.congestionControl = congestionControl;
+        ensureCapacity(getEffectiveWindow());
+        recordCwnd();
+    }
+
+    public boolean isCongestionControl() {
+        return congestionControl;
+    }
+
+    public double getCwnd() {
+        return cwnd;
+    }
+
+    public double getSsthresh() {
+        return ssthresh;
+    }
+
+    /*
+     * Records every change of the congestion window into recorder, or stops recording if it is null.
+     */
+    public void setCwndRecorder(CwndRecorder recorder) {
+        this.cwndRecorder = recorder;
+        recordCwnd();
+    }
+
+    private void recordCwnd() {
+        if (cwndRecorder != null && congestionControl) {
+            cwndRecorder.record(simulator.getTime(), Math.min(cwnd, windowSize), ssthresh);
+        }
     }
 
+    /*
+     * A new ACK acknowledged acked packets: grow the window exponentially in slow start, by about one packet per
+     * window of ACKs in congestion avoidance.
+     */
+    private void openCwnd(int acked) {
+        for (int i = 0; i < acked; i++) {
+            cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+        }
+        cwnd = Math.min(cwnd, MAX_WINDOW);
+        ensureCapacity(getEffectiveWindow());
+        recordCwnd();
+    }
+
+    /*
+     * Multiplicative decrease: remember half the packets in flight as ssthresh, then restart from one packet after
+     * a timeout or continue from ssthresh after a triple duplicate ACK.
+     */
+    private void closeCwnd(boolean timeout) {
+        ssthresh = Math.max(getPacketsInFlight() / 2, 2);
+        cwnd = timeout ? 1 : ssthresh;
+        recordCwnd();
+    }
+
+    /*
+     * Turns fast retransmit on the third duplicate ACK on (the default) or off.
+     */
+    public void setFastRetransmit(boolean fastRetransmit) {
+        this.fastRetransmit = fastRetransmit;
+    }
+
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    public int getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    /*
+     * Number of lost packets that have been recovered, i.e. retransmitted and then ACKed.
+     */
+    public int getRecoveries() {
+        return recoveries;
+    }
+
+    /*
+     * Mean time from first sending a lost packet until its ACK, in simulation time.
+     */
+    public double getMeanRecoveryTime() {
+        return recoveries == 0 ? Double.NaN : recoveryTime / recoveries;
+    }
+
+    /*
+     * Mean time from first sending a lost packet until its ACK, in smoothed RTTs.
+     */
+    public double getMeanRecoveryRtts() {
+        return rttRecoveries == 0 ? Double.NaN : recoveryRtts / rttRecoveries;
+    }
+
+    /*
+     * Starts recovering the packet at sendBase unless it's already being recovered.
+     */
+    private void startRecovery() {
+        if (recoveringSeq < sendBase) {
+            recoveringSeq = sendBase;
+        }
+    }
+
+    /*
+     * Number of packets sent but not yet acknowledged.
+     */
+    public int getPacketsInFlight() {
+        return nextSeqNum - sendBase;
+    }
 
 
     /* Handles ACK packets returned from the Receiver. If the received ACK is not corrupt and is for a packet in the
@@ -129,71 +331,136 @@ public class TransportLayerSender extends TransportLayer {
      * */
     @Override
     public void rdt_receive(TransportLayerPacket pkt) {
-        log(pkt, "ACK Received.");
+        log(TraceEvent.ACK_RECEIVED, pkt);
 
         if (isCorrupt(pkt)) {
-            log(pkt, "Received packet is corrupt.");
+            log(TraceEvent.ACK_CORRUPT, pkt);
         } else {
 
-            if (sentPackets.containsKey(pkt.getSeqnum())) {
+            // the ACK must be for a packet in the window and can only move the window forward
+            if (pkt.getSeqnum() >= sendBase && pkt.getSeqnum() < nextSeqNum
+                    && pkt.getAcknum() > sendBase && pkt.getAcknum() <= nextSeqNum) {
 
+                log(TraceEvent.ACK_CORRECT, pkt);
+                dupAcks = 0;
+                if (congestionControl) {
+                    openCwnd(pkt.getAcknum() - sendBase);
+                }
 
-                log(pkt, "└── ACK is correct.\n");
+                // the ACK is for the packet before acknum, it gives an RTT sample unless that packet was resent
+                double sentTime = sentAt[(pkt.getAcknum() - 1) & windowMask];
+                if (!Double.isNaN(sentTime)) {
+                    rtt.sample(simulator.getTime() - sentTime);
+                } else {
+                    rtt.resetBackoff();
+                }
 
-                //this is not pkt.getAcknum()+1 as we made our ACKs be sequenceNumber + 1
-                sendBase = pkt.getAcknum();
-
-                // remove ACKed packets from the window(sentPackets)
-                Iterator it = sentPackets.entrySet().iterator();
-                while (it.hasNext()) {
-                    Map.Entry packet = (Map.Entry) it.next();
-                    String packetKey = packet.getKey().toString();
-                    int pktKey = Integer.parseInt(packetKey);
-                    if (pktKey < pkt.getAcknum()) {
-                        log(pkt, "└── Removing: " + it.toString());
-                        log(pkt, "└── Removing packet with sequence number:" + pktKey);
-                        it.remove();
+                if (recoveringSeq >= sendBase && recoveringSeq < pkt.getAcknum()) {
+                    double latency = simulator.getTime() - firstSentAt[recoveringSeq & windowMask];
+                    recoveries++;
+                    recoveryTime += latency;
+                    if (rtt.getSamples() > 0) {
+                        recoveryRtts += latency / rtt.getSrtt();
+                        rttRecoveries++;
                     }
+                    recoveringSeq = -1;
                 }
 
+                // remove ACKed packets from the window
+                //this is not pkt.getAcknum()+1 as we made our ACKs be sequenceNumber + 1
+                for (; sendBase < pkt.getAcknum(); sendBase++) {
+                    log(TraceEvent.ACK_REMOVE, pkt, sendBase);
+                    window[sendBase & windowMask] = null;
+                }
+                resendNext = Math.max(resendNext, sendBase);
 
-                readyToSend = true; // receiver got the packet successfully, so we can set readyToSend back to True
-
-
-                if(sendBase == nextSeqNum && sentPackets.size()==0){
+                if(sendBase == nextSeqNum){
                     simulator.stopTimer(this);
-                    System.out.println("└──STOP TIMER no packets in window ");
+                    log(TraceEvent.STOP_TIMER_EMPTY);
 
                 }else{
                     simulator.stopTimer(this);
-                    simulator.startTimer(this,1000);
-                    System.out.println("└──START TIMER FOR MOVED UP WINDOW");
+                    simulator.startTimer(this, rtt.getRto());
+                    log(TraceEvent.RESTART_TIMER);
                 }
 
-                // sends the next piece of data if the queue is populated
-                byte[] queueNext = takeFromQueue();
-                if (queueNext != null) {
-                    sendData(queueNext); // bypass rdt_send() queue check which adds new request to queue to favour old ones
+                // packets still waiting to be resent after a timeout go before new data
+                resendWindow();
+
+                // sends queued data while there's room in the window
+                // bypass rdt_send() queue check which adds new request to queue to favour old ones
+                while (readyToSend() && !queue.isEmpty()) {
+                    sendData(takeFromQueue());
                 }
 
+            } else if (pkt.getAcknum() == sendBase && sendBase < nextSeqNum) {
+                // the receiver got something after a gap and re-ACKed the last in-order packet
+                log(TraceEvent.ACK_DUPLICATE, pkt);
+                // the first third duplicate ACK of a loss episode halves the window and goes back to sendBase
+                if (++dupAcks == 3 && sendBase > recover) {
+                    if (congestionControl) {
+                        closeCwnd(false);
+                    }
+                    if (fastRetransmit) {
+                        fastRetransmit();
+                    } else {
+                        recover = nextSeqNum - 1;
+                    }
+                }
             } else {
-                log(pkt, "└── Invalid ACK.");
+                log(TraceEvent.ACK_INVALID, pkt);
             }
 
 
         }
     }
 
+    /*
+     * The third duplicate ACK: sendBase was lost and the receiver discarded what followed it, so go back to
+     * sendBase now rather than when the timer expires.
+     */
+    private void fastRetransmit() {
+        log(TraceEvent.FAST_RETRANSMIT, window[sendBase & windowMask]);
+        fastRetransmits++;
+        startRecovery();
+        recover = nextSeqNum - 1;
+        resendNext = sendBase;
+        resendWindow();
+        simulator.stopTimer(this);
+        simulator.startTimer(this, rtt.getRto());
+        log(TraceEvent.RESTART_TIMER);
+    }
+
+    /*
+     * Resends packets from resendNext while they fit in the window.
+     */
+    private void resendWindow() {
+        for (; resendNext < nextSeqNum && resendNext - sendBase < getEffectiveWindow(); resendNext++) {
+            simulator.sendToNetworkLayer(this, window[resendNext & windowMask]);
+            sentAt[resendNext & windowMask] = Double.NaN;
+            simulator.getMetrics().retransmission();
+            log(TraceEvent.RESEND, resendNext + 1);
+        }
+    }
+
     @Override
     public void timerInterrupt() {
-        log(packet, "(Timer Interrupt! Retransmitting all packets in window.)");
-
-        for (HashMap.Entry<Integer, TransportLayerPacket> entry : sentPackets.entrySet()){
-            simulator.sendToNetworkLayer(this, entry.getValue());
-            System.out.println("resending packet " + (entry.getValue().getSeqnum()+1) );
+        log(TraceEvent.TIMEOUT, packet);
+        timeouts++;
+        startRecovery();
+        recover = nextSeqNum - 1;
+
+        rtt.backoff();
+        if (congestionControl) {
+            closeCwnd(true);
         }
+        dupAcks = 0;
+
+        // go back to sendBase, with congestion control only as much as the shrunken window allows is resent now
+        resendNext = sendBase;
+        resendWindow();
 
-        simulator.startTimer(this, 1000.0);
-        System.out.println("└──START TIMER");
+        simulator.startTimer(this, rtt.getRto());
+        log(TraceEvent.START_TIMER);
     }
 }
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * Runs a sender and a receiver written for the simulator over real UDP
+ * sockets on the loopback interface, to measure what a protocol costs on
+ * real hardware rather than how it behaves in virtual time.  The transport
+ * layers are unchanged: this is a NetworkSimulator whose network layer
+ * writes every packet as a datagram (seqnum, acknum and checksum as big
+ * endian ints, then the payload) to a connected non-blocking DatagramChannel
+ * per endpoint, and whose timers run on the wall clock.  Simulation time is
+ * the time since the start of the run in units of setTimeUnit (milliseconds
+ * by default), so RTT estimates and timeouts are real.
+ *
+ * One thread runs a selector loop: it fires the timers that are due, hands
+ * the sender messages while the send buffer (setSendBuffer) has room, sends
+ * the datagrams the layers queued meanwhile in a batch from a direct buffer,
+ * then reads up to BATCH datagrams from each socket that has some.  Loss and
+ * corruption are drawn from the simulator's model as packets are sent, a
+ * corrupted packet is corrupted on the wire, and a datagram the kernel has
+ * no room for is counted as dropped.  Since nothing on the wire marks a
+ * corrupted packet, undetected corruptions are not counted.  Java has no
+ * sendmmsg/recvmmsg, so a batch is a run of system calls that the loop
+ * doesn't interrupt for anything else.
+ *
+ * A run ends when every message has been delivered, or when nothing has
+ * happened for a second with no timer running.  It supports a single flow
+ * with bidirectional false, and a Workload.
+ */
+public class UdpLoopback extends NetworkSimulator {
+
+    static final int BATCH = 64;                // datagrams read from a socket per wake up
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int SEND_QUEUE = 1 << 20; // bytes of datagrams queued per endpoint before they are sent
+    private static final int SOCKET_BUFFER = 1 << 22;
+    private static final long IDLE_NANOS = 1_000_000_000L;
+
+    private double nanosPerUnit = 1e6;
+    private EventQueue timers;
+    private DatagramChannel[] sockets;
+    private final ByteBuffer[] sendQueues = new ByteBuffer[2];   // datagrams queued by endpoint, back to back
+    private final int[][] lengths = new int[2][64];
+    private final int[] queued = new int[2];
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private long cpuNanos;
+
+    public UdpLoopback(int numMessages, double lossProb, double corruptProb, long seed) {
+        super(numMessages, lossProb, corruptProb, 1.0, false, 0, seed);
+        setTracer(Tracer.off());
+        sendQueues[0] = ByteBuffer.allocateDirect(SEND_QUEUE);
+        sendQueues[1] = ByteBuffer.allocateDirect(SEND_QUEUE);
+    }
+
+    /**
+     * Set the length of one unit of simulation time in nanoseconds, 1e6 by
+     * default.  The RTO bounds of RttEstimator are in these units.
+     */
+    public void setTimeUnit(double nanos) {
+        nanosPerUnit = nanos;
+    }
+
+    /**
+     * @return the CPU time the last run took on its thread, in nanoseconds.
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * UdpLoopback runs on one thread: the same as runSimulation().
+     * @throws IllegalArgumentException if threads is not 1.
+     */
+    @Override
+    public void runSimulation(int threads) {
+        if (threads != 1) {
+            throw new IllegalArgumentException("UdpLoopback runs on one thread, not " + threads + ".");
+        }
+        runSimulation();
+    }
+
+    @Override
+    public void runSimulation() {
+        if (getNumFlows() > 1 || bidirectional) {
+            throw new IllegalStateException("UdpLoopback runs a single flow in one direction.");
+        }
+        startRun();
+        timers = new EventQueue();
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        try (Selector selector = Selector.open();
+             DatagramChannel sender = DatagramChannel.open();
+             DatagramChannel receiver = DatagramChannel.open()) {
+            sockets = new DatagramChannel[] {sender, receiver};
+            for (DatagramChannel socket : sockets) {
+                socket.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+                socket.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+                socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            }
+            sender.connect(receiver.getLocalAddress());
+            receiver.connect(sender.getLocalAddress());
+            for (int id = 0; id < 2; id++) {
+                sockets[id].configureBlocking(false);
+                sockets[id].register(selector, SelectionKey.OP_READ, id);
+                sendQueues[id].clear();
+                queued[id] = 0;
+            }
+
+            long gcBefore = collectionCount();
+            long cpuBefore = threadBean.getCurrentThreadCpuTime();
+            startNanos = System.nanoTime();
+            long lastActivity = startNanos;
+            getEndpoint(SENDER).init();
+            getEndpoint(RECEIVER).init();
+
+            while (messagesDelivered < getNumMessages()) {
+                boolean active = fireTimers() | offerMessages();
+                flush(SENDER);
+                flush(RECEIVER);
+
+                // block until a datagram arrives or the next timer is due (select has millisecond resolution)
+                long wait = 0;
+                if (!active) {
+                    wait = timers.isEmpty() ? IDLE_NANOS : (long) ((timers.peekTime() - now()) * nanosPerUnit);
+                }
+                int ready = wait <= 0 ? selector.selectNow() : selector.select(Math.max(1, wait / 1_000_000));
+                if (ready > 0) {
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        receive((Integer) key.attachment());
+                    }
+                    selector.selectedKeys().clear();
+                    flush(SENDER);
+                    flush(RECEIVER);
+                }
+                long time = System.nanoTime();
+                if (active || ready > 0) {
+                    lastActivity = time;
+                } else if (timers.isEmpty() && time - lastActivity >= IDLE_NANOS) {
+                    break;  // nothing can happen any more
+                }
+            }
+
+            cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuBefore;
+            simulationTime = now();
+            finishRun(gcBefore);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            sockets = null;
+        }
+    }
+
+    /*
+     * Wall clock time since the start of the run in units of simulation time.
+     */
+    private double now() {
+        return (System.nanoTime() - startNanos) / nanosPerUnit;
+    }
+
+    /*
+     * Fires every timer that is due.
+     * @return true if any was.
+     */
+    private boolean fireTimers() {
+        simulationTime = now();
+        if (timers.isEmpty() || timers.peekTime() > simulationTime) {
+            return false;
+        }
+        while (!timers.isEmpty() && timers.peekTime() <= simulationTime) {
+            timers.poll();
+            eventsProcessed++;
+            int id = timers.polledEndpoint();
+            if (timers.polledTag() == DEFAULT_TIMER) {
+                defaultTimers()[id] = 0;
+            }
+            getMetrics().timerFired();
+            getEndpoint(id).timerInterrupt(timers.polledTag());
+        }
+        return true;
+    }
+
+    /*
+     * Hands the sender the next messages while the send buffer has room.
+     * @return true if there was any.
+     */
+    private boolean offerMessages() {
+        boolean offered = false;
+        while (messagesSent <= getNumMessages() && messagesSent - 1 - messagesDelivered < sendBuffer) {
+            simulationTime = now();
+            byte[] msg = getWorkload() != null ? getWorkload().next() : randomLetters();
+            messagesSent++;
+            eventsProcessed++;
+            getMetrics().messageSent(RECEIVER, simulationTime);
+            getEndpoint(SENDER).rdt_send(msg);
+            offered = true;
+        }
+        return offered;
+    }
+
+    /*
+     * Reads up to BATCH datagrams from the socket of an endpoint and hands them to it.
+     */
+    private void receive(int id) throws IOException {
+        for (int n = 0; n < BATCH; n++) {
+            receiveBuffer.clear();
+            if (sockets[id].read(receiveBuffer) <= 0) {
+                return;
+            }
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < TransportLayerPacket.HEADER_SIZE) {
+                continue;   // not one of ours
+            }
+            int seqnum = receiveBuffer.getInt();
+            int acknum = receiveBuffer.getInt();
+            int chksum = receiveBuffer.getInt();
+            byte[] data = TransportLayerPacket.NO_DATA;
+            if (receiveBuffer.hasRemaining()) {
+                data = new byte[receiveBuffer.remaining()];
+                receiveBuffer.get(data);
+            }
+            simulationTime = now();
+            eventsProcessed++;
+            getEndpoint(id).rdt_receive(new TransportLayerPacket(seqnum, acknum, chksum, data, getIntegrity()));
+        }
+    }
+
+    /**
+     * Queues pkt to be sent as a datagram to the other endpoint, unless the
+     * network model loses it.
+     * @throws IllegalArgumentException if pkt does not fit in one datagram.
+     */
+    @Override
+    public void sendToNetworkLayer(TransportLayer source, TransportLayerPacket pkt) {
+        if (pkt.getWireSize() > MAX_DATAGRAM) {
+            throw new IllegalArgumentException("A packet of " + pkt.getWireSize()
+                    + " bytes does not fit in a UDP datagram of at most " + MAX_DATAGRAM + " bytes.");
+        }
+        int id = source.getEndpointId();
+        TransportLayerPacket wire = impair(id, pkt);
+        if (wire == null) {
+            return;
+        }
+        getTracer().packet(TraceEvent.NET_SEND, simulationTime, id, wire);
+        ByteBuffer out = sendQueues[id];
+        if (out.remaining() < wire.getWireSize()) {
+            flush(id);
+        }
+        out.putInt(wire.getSeqnum()).putInt(wire.getAcknum()).putInt(wire.getChksum()).put(wire.getData());
+        if (queued[id] == lengths[id].length) {
+            lengths[id] = Arrays.copyOf(lengths[id], 2 * queued[id]);
+        }
+        lengths[id][queued[id]++] = wire.getWireSize();
+    }
+
+    /*
+     * Sends the datagrams queued by an endpoint.
+     */
+    private void flush(int id) {
+        ByteBuffer out = sendQueues[id];
+        int start = 0;
+        try {
+            for (int i = 0; i < queued[id]; i++) {
+                out.limit(start + lengths[id][i]).position(start);
+                if (sockets[id].write(out) == 0) {
+                    numDropped++;   // no room in the socket buffer
+                }
+                start += lengths[id][i];
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        out.clear();
+        queued[id] = 0;
+    }
+
+    @Override
+    long scheduleTimer(TransportLayer t, double increment, int tag) {
+        getTracer().event(TraceEvent.SIM_START_TIMER, simulationTime, t.getEndpointId());
+        return timers.add(simulationTime + increment, EventQueue.TIMER_INTERRUPT, t.getEndpointId(), null, tag);
+    }
+
+    @Override
+    public boolean cancelTimer(long handle) {
+        return timers.remove(handle);
+    }
+
+    @Override
+    public boolean isTimerActive(long handle) {
+        return timers.contains(handle);
+    }
+}
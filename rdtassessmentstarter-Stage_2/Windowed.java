@@ -0,0 +1,9 @@
+/*
+ * A TransportLayer whose window size can be configured, e.g. by ParameterSweep.
+ */
+public interface Windowed {
+
+    int getWindowSize();
+
+    void setWindowSize(int windowSize);
+}
@@ -0,0 +1,29 @@
+/**
+ * The application data of a simulation, in place of the 20 random letters
+ * of every message: what arrives from layer 5 at the sending end of the flow
+ * and what the receiving end's application layer does with it.  Messages
+ * are handed out and delivered in order, one flow in one direction.
+ */
+public interface Workload {
+
+    /**
+     * @return the number of messages, it replaces the simulator's numMessages.
+     */
+    int getNumMessages();
+
+    /**
+     * @return the payload of the next message.
+     */
+    byte[] next();
+
+    /**
+     * Called with every message the receiving transport layer delivers to
+     * the application layer.
+     */
+    void deliver(byte[] data);
+
+    /**
+     * Start again from the first message, called at the start of every run.
+     */
+    void reset();
+}